@@ -0,0 +1,514 @@
+/**
+ * Benchmark suite for grammar loading and matching.
+ *
+ * Each benchmark is warmed up, then timed over several measurement
+ * iterations, reporting the mean and standard deviation of the time per
+ * operation and the heap bytes allocated per operation. Results are printed
+ * as a table and written as a JSON array, so runs can be compared over time.
+ *
+ * Run from the project root, with src and bench compiled onto the classpath:
+ *   java BenchmarkSuite [-o results.json] [-f name-filter] [-w warmup-ms]
+ *                       [-m iteration-ms] [-i iterations]
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TreeSet;
+
+public class BenchmarkSuite {
+
+  /**
+   * A single benchmark: setup() is run once, untimed, then op() repeatedly
+   */
+  static abstract class Benchmark {
+    final String name;
+
+    Benchmark(String name) {
+      this.name = name;
+    }
+
+    void setup() throws Exception {}
+
+    /**
+     * @return  a value derived from the work done, so it cannot be optimized away
+     */
+    abstract int op() throws Exception;
+  }
+
+  static volatile int sink; //consumes the results of op()
+
+  /*************************** Grammars ***************************/
+
+  static String example(String bn, String bnd) throws Exception {
+    return BackusNaur.fileToString(new File("examples/" + bn)) + "\n" +
+           BackusNaur.fileToString(new File("examples/" + bnd));
+  }
+
+  /**
+   * @param n   the number of entries
+   * @return    a dictionary <word> of n entries, every 7th of them two words long
+   */
+  static String dictionary(int n) {
+    StringBuilder sb = new StringBuilder("<doc> ::= <word> <word> <word> <word>\n<word> ::= ");
+    for (int i = 0; i < n; i++) {
+      if (i > 0) sb.append(" | ");
+      sb.append('w').append(i);
+      if (i % 7 == 0) sb.append(" x").append(i);
+    }
+    return sb.append('\n').toString();
+  }
+
+  /**
+   * @param n   the number of sentences
+   * @return    a rule <sentence> of n literal-heavy alternatives sharing
+   *            their first words, so that every step compares a token to a literal
+   */
+  static String literalSentences(int n) {
+    StringBuilder sb = new StringBuilder("<text> ::= <sentence> <sentence> <sentence> <sentence>\n");
+    sb.append("<sentence> ::= ");
+    for (int i = 0; i < n; i++) {
+      if (i > 0) sb.append(" | ");
+      sb.append("the <adjective> brown fox number ").append(i).append(" jumps over the lazy dog");
+    }
+    return sb.append("\n<adjective> ::= quick | slow\n").toString();
+  }
+
+  /**
+   * @param n   the number of alternatives
+   * @return    a rule <deep> of n alternatives that each begin with a symbol
+   */
+  static String deepAlternation(int n) {
+    StringBuilder sb = new StringBuilder("<deep> ::= ");
+    for (int i = 0; i < n; i++) {
+      if (i > 0) sb.append(" | ");
+      sb.append("<prefix> t").append(i);
+    }
+    return sb.append("\n<prefix> ::= a | b | c\n").toString();
+  }
+
+  /**
+   * @param n   the number of categories
+   * @return    a rule <entry> of n alternatives that each begin with a
+   *            different category of 5 words, so that at any token only one
+   *            of them can match
+   */
+  static String categories(int n) {
+    StringBuilder sb = new StringBuilder("<doc> ::= <entry> <entry> <entry> <entry>\n<entry> ::= ");
+    for (int i = 0; i < n; i++) {
+      if (i > 0) sb.append(" | ");
+      sb.append("<c").append(i).append("> is");
+    }
+    sb.append('\n');
+    for (int i = 0; i < n; i++) {
+      sb.append("<c").append(i).append("> ::= ");
+      for (int j = 0; j < 5; j++) sb.append(j > 0 ? " | " : "").append('k').append(i).append('_').append(j);
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param n   the number of rules
+   * @return    a chain of n rules, each referring to the one before it
+   */
+  static String ruleChain(int n) {
+    StringBuilder sb = new StringBuilder("<r0> ::= a | b\n");
+    for (int i = 1; i < n; i++)
+      sb.append("<r").append(i).append("> ::= <r").append(i - 1).append("> w").append(i)
+        .append(" | w").append(i).append(" x\n");
+    return sb.toString();
+  }
+
+  /**
+   * @return  a recursive grammar of a text as a list of simple sentences
+   */
+  static String sentenceList() throws Exception {
+    return "<text> ::= <text> <sentence> | <sentence>\n" +
+           example("3. Simple Sentence.bn", "3. NVA_list.bnd");
+  }
+
+  /**
+   * @param n   the number of clause rules
+   * @return    a grammar of n clause rules <c0> to <cn-1>, each of a few
+   *            alternatives over shared noun phrases, for the compiled tier
+   *            to turn into methods
+   */
+  static String clauses(int n) {
+    StringBuilder sb = new StringBuilder("<doc> ::= <clause> <clause> <clause> <clause>\n<clause> ::= ");
+    for (int i = 0; i < n; i++) sb.append(i > 0 ? " | " : "").append("<c").append(i).append('>');
+    sb.append('\n');
+    for (int i = 0; i < n; i++)
+      sb.append("<c").append(i).append("> ::= k").append(i).append(" <np> v").append(i)
+        .append(" | k").append(i).append(" <np> v").append(i).append(" <np>")
+        .append(" | k").append(i).append(" not v").append(i).append('\n');
+    return sb.append("<np> ::= the <noun> | the <adjective> <noun> | <noun>\n")
+             .append("<noun> ::= cat | dog | milk | bone\n<adjective> ::= big | small\n").toString();
+  }
+
+  /**
+   * @param n   the number of items
+   * @return    a list of n items joined by "and", for a grammar with a { } repetition
+   */
+  static String andList(int n) {
+    StringBuilder sb = new StringBuilder("a");
+    for (int i = 1; i < n; i++) sb.append(i % 2 == 0 ? " and a" : " and b");
+    return sb.toString();
+  }
+
+  static String repeat(String s, int n) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++) sb.append(s).append(' ');
+    return sb.toString();
+  }
+
+  /*************************** Benchmarks ***************************/
+
+  static Benchmark load(String name, final String defs) {
+    return new Benchmark("load/" + name) {
+      int op() throws Exception {
+        return new BackusNaur(defs).symbols.size();
+      }
+    };
+  }
+
+  static Benchmark loadSnapshot(String name, final String defs) {
+    return new Benchmark("load-snapshot/" + name) {
+      File f;
+      void setup() throws Exception {
+        f = File.createTempFile("bench", ".bns");
+        f.deleteOnExit();
+        new BackusNaur(defs).saveSnapshot(f);
+      }
+      int op() throws Exception {
+        return BackusNaur.loadSnapshot(f).symbols.size();
+      }
+    };
+  }
+
+  /**
+   * Updates a grammar with one of two versions of its definitions in turn,
+   * which differ only in the definition of one symbol
+   */
+  static Benchmark update(String name, final String defs, final String edited) {
+    return new Benchmark("update/" + name) {
+      BackusNaur bn;
+      boolean flip;
+      void setup() throws Exception {
+        bn = new BackusNaur(defs);
+      }
+      int op() throws Exception {
+        flip = !flip;
+        bn = bn.update(flip ? edited : defs);
+        return bn.symbols.size();
+      }
+    };
+  }
+
+  /**
+   * Updates a grammar matched with its own tokenizer, as update(), once
+   * setup() has checked that the updated grammar still matches a text only
+   * that tokenizer splits into the symbol's tokens
+   */
+  static Benchmark updateTokenized(String name, final String defs, final String edited,
+                                   final Tokenizer tokenizer, final String symbol, final String text) {
+    return new Benchmark("update-tokenized/" + name) {
+      BackusNaur bn;
+      boolean flip;
+      void setup() throws Exception {
+        bn = new BackusNaur(defs);
+        bn.setTokenizer(tokenizer);
+        if (!bn.update(edited).match(symbol, text).isMatched())
+          throw new Exception("Error: the updated grammar lost its tokenizer.");
+      }
+      int op() throws Exception {
+        flip = !flip;
+        bn = bn.update(flip ? edited : defs);
+        return bn.match(symbol, text).size();
+      }
+    };
+  }
+
+  static Benchmark validate(String name, final String defs) {
+    return new Benchmark("validate/" + name) {
+      BackusNaur bn;
+      void setup() throws Exception {
+        bn = new BackusNaur(defs);
+      }
+      int op() throws Exception {
+        bn.validate();
+        return bn.isRecursive() ? 1 : 0;
+      }
+    };
+  }
+
+  static Benchmark match(String name, final String defs, final String symbol,
+                         final String text, final BackusNaur.Engine engine) {
+    return new Benchmark("match/" + name + "/" + engine.toString().toLowerCase()) {
+      BackusNaur bn;
+      void setup() throws Exception {
+        bn = new BackusNaur(defs);
+        bn.setEngine(engine);
+      }
+      int op() throws Exception {
+        MatchResult res = bn.match(symbol, text);
+        return res.size() + (res.isMatched() ? 1 : 0);
+      }
+    };
+  }
+
+  /**
+   * Matches with the compiled tier of the recursive descent matcher
+   */
+  static Benchmark matchCompiled(String name, final String defs, final String symbol, final String text) {
+    return new Benchmark("match/" + name + "/compiled") {
+      BackusNaur bn;
+      void setup() throws Exception {
+        bn = new BackusNaur(defs);
+        bn.setCompiled(true);
+      }
+      int op() throws Exception {
+        MatchResult res = bn.match(symbol, text);
+        return res.size() + (res.isMatched() ? 1 : 0);
+      }
+    };
+  }
+
+  /**
+   * Matches by recursive descent and renders every sub-match to a String
+   */
+  static Benchmark matchRendered(String name, final String defs, final String symbol, final String text) {
+    return new Benchmark("match-rendered/" + name) {
+      BackusNaur bn;
+      void setup() throws Exception {
+        bn = new BackusNaur(defs);
+      }
+      int op() throws Exception {
+        HashMap<String, TreeSet<String>> m = new HashMap<String, TreeSet<String>>();
+        return m.size() + (bn.matches(symbol, text, m) ? 1 : 0);
+      }
+    };
+  }
+
+  /**
+   * Finds every occurrence of a symbol in a long text
+   */
+  static Benchmark scan(String name, final String defs, final String symbol,
+                        final String text, final boolean overlapping) {
+    return new Benchmark("scan/" + name + (overlapping ? "/overlapping" : "/leftmost")) {
+      BackusNaur bn;
+      void setup() throws Exception {
+        bn = new BackusNaur(defs);
+      }
+      int op() throws Exception {
+        MatchResult res = bn.scan(symbol, text, overlapping);
+        return res.size() + (res.isComplete() ? 1 : 0);
+      }
+    };
+  }
+
+  /**
+   * Matches by recursive descent, once setup() has checked that every
+   * engine, and the compiled tier, agree on whether the text matches
+   */
+  static Benchmark consistent(String name, final String defs, final String symbol, final String text) {
+    return new Benchmark("consistent/" + name) {
+      BackusNaur bn;
+      void setup() throws Exception {
+        bn = new BackusNaur(defs);
+        boolean matched = bn.match(symbol, text).isMatched();
+        for (int e = 0; e <= BackusNaur.Engine.values().length; e++) {
+          BackusNaur other = new BackusNaur(defs);
+          if (e < BackusNaur.Engine.values().length) other.setEngine(BackusNaur.Engine.values()[e]);
+          else other.setCompiled(true);
+          if (other.match(symbol, text).isMatched() != matched)
+            throw new Exception("Error: the engines disagree on <" + symbol + "> over \"" + text + "\".");
+        }
+      }
+      int op() throws Exception {
+        MatchResult res = bn.match(symbol, text);
+        return res.size() + (res.isMatched() ? 1 : 0);
+      }
+    };
+  }
+
+  static ArrayList<Benchmark> benchmarks() throws Exception {
+    ArrayList<Benchmark> list = new ArrayList<Benchmark>();
+    String hello = example("1. Hello World.bn", "1. Hello World.bnd");
+    String fruits = example("2. Fruits.bn", "2. Fruit Names.bnd");
+    String sentence = example("3. Simple Sentence.bn", "3. NVA_list.bnd");
+    String dict = dictionary(100000);
+    String deep = deepAlternation(5000);
+    String list_ = sentenceList();
+    String chain = ruleChain(5000);
+    String cats = categories(2000);
+    String itemList = "<list> ::= <item> { and <item> }\n<item> ::= a | b\n";
+    String clauses = clauses(1000);
+    String clauseText = "k0 the cat v0 the milk k999 not v999 k500 the big dog v500 k7 bone v7";
+    String literals = literalSentences(200);
+    StringBuilder literalText = new StringBuilder();
+    for (int i = 0; i < 4; i++)
+      literalText.append("The Quick Brown Fox Number ").append(50 * i + 7).append(" Jumps Over The Lazy Dog ");
+    BackusNaur.Engine descent = BackusNaur.Engine.DESCENT, chart = BackusNaur.Engine.CHART,
+                      dfa = BackusNaur.Engine.DFA;
+
+    list.add(load("hello-world", hello));
+    list.add(load("fruits", fruits));
+    list.add(load("simple-sentence", sentence));
+    list.add(load("dictionary-100k", dict));
+    list.add(load("deep-alternation-5k", deep));
+    list.add(load("rule-chain-5k", chain));
+    list.add(load("categories-2k", cats));
+
+    //one rule edited, at the start or the end of the definitions
+    list.add(update("rule-chain-5k/first", chain, chain.replace("<r0> ::= a | b", "<r0> ::= a | c")));
+    list.add(update("rule-chain-5k/last", chain, chain + "<extra> ::= <r4999> end\n"));
+    list.add(update("dictionary-100k/doc", dict, dict.replace("<doc> ::= <word> <word> <word> <word>",
+                                                                "<doc> ::= <word> <word> <word>")));
+    //words joined by hyphens, which only this tokenizer splits
+    String hyphenated = "<pair> ::= well known\n";
+    list.add(updateTokenized("hyphens", hyphenated, hyphenated + "<other> ::= little known\n",
+                             new Tokenizer(".,!@#$%^&*()", " \t\n\u000B\f\r-"), "pair", "well-known"));
+
+    list.add(loadSnapshot("simple-sentence", sentence));
+    list.add(loadSnapshot("dictionary-100k", dict));
+
+    list.add(validate("simple-sentence", sentence));
+    list.add(validate("dictionary-100k", dict));
+    list.add(validate("deep-alternation-5k", deep));
+
+    for (BackusNaur.Engine e : new BackusNaur.Engine[] { descent, chart, dfa }) {
+      list.add(match("hello-world", hello, "statement", "hello world", e));
+      list.add(match("fruits", fruits, "fruit", "Goji berry", e));
+      list.add(match("simple-sentence", sentence, "sentence", "The cat drinks the milk.", e));
+      list.add(match("dictionary-100k", dict, "doc", "w1 w7 x7 w99999 w14 x14", e));
+      list.add(match("deep-alternation-5k", deep, "deep", "c t4999", e));
+      list.add(match("categories-2k", cats, "doc", "k0_1 is k1999_4 is k1000_0 is k7_3 is", e));
+      list.add(match("repetition-10k", itemList, "list", andList(10000), e));
+      list.add(match("clauses-1k", clauses, "doc", clauseText, e));
+      list.add(match("literal-sentences-200", literals, "text", literalText.toString(), e));
+    }
+    list.add(matchCompiled("hello-world", hello, "statement", "hello world"));
+    list.add(matchCompiled("fruits", fruits, "fruit", "Goji berry"));
+    list.add(matchCompiled("simple-sentence", sentence, "sentence", "The cat drinks the milk."));
+    list.add(matchCompiled("deep-alternation-5k", deep, "deep", "c t4999"));
+    list.add(matchCompiled("categories-2k", cats, "doc", "k0_1 is k1999_4 is k1000_0 is k7_3 is"));
+    list.add(matchCompiled("repetition-10k", itemList, "list", andList(10000)));
+    list.add(matchCompiled("clauses-1k", clauses, "doc", clauseText));
+    list.add(matchCompiled("literal-sentences-200", literals, "text", literalText.toString()));
+    list.add(matchRendered("simple-sentence", sentence, "sentence", "The cat drinks the milk."));
+    list.add(matchRendered("literal-sentences-200", literals, "text", literalText.toString()));
+    //groups that may be empty, left at the end of the text
+    String tails = "<opt> ::= b [ c ]\n<rep> ::= b { c }\n<item> ::= b [ c ] | d { e }\n";
+    list.add(consistent("trailing-optional", tails, "opt", "b"));
+    list.add(consistent("trailing-repetition", tails, "rep", "b"));
+    list.add(consistent("trailing-groups", tails, "item", "d"));
+    //recursive grammars are always matched by the chart parser
+    list.add(match("long-input-1k-sentences", list_, "text",
+                   repeat("the cat drinks the milk he nicely eats", 500), chart));
+    //occurrences in 100k tokens, with the automaton, and by the chart parser
+    String noisyClauses = repeat("and " + clauseText + " so the cat", 5000);
+    String noisySentences = repeat("and so the cat drinks the milk he nicely eats well", 10000);
+    for (boolean overlapping : new boolean[] { false, true }) {
+      list.add(scan("clauses-1k-100k-tokens", clauses, "clause", noisyClauses, overlapping));
+      list.add(scan("sentences-100k-tokens", list_, "sentence", noisySentences, overlapping));
+    }
+    return list;
+  }
+
+  /*************************** Harness ***************************/
+
+  static class Result {
+    String name;
+    double meanNs, stdevNs, bytesPerOp;
+    long ops;
+  }
+
+  /**
+   * Runs op() repeatedly for at least a given time
+   * @return  the number of times op() was run
+   */
+  static long runFor(Benchmark b, long nanos) throws Exception {
+    long start = System.nanoTime(), ops = 0;
+    int acc = 0;
+    do {
+      acc += b.op();
+      ops++;
+    } while (System.nanoTime() - start < nanos);
+    sink += acc;
+    return ops;
+  }
+
+  static Result measure(Benchmark b, long warmupMs, long iterationMs, int iterations) throws Exception {
+    com.sun.management.ThreadMXBean mx =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long tid = Thread.currentThread().getId();
+    b.setup();
+    runFor(b, warmupMs * 1000000L);
+
+    double[] perOp = new double[iterations];
+    long totalOps = 0, totalBytes = 0;
+    for (int i = 0; i < iterations; i++) {
+      long bytes = mx.getThreadAllocatedBytes(tid);
+      long time = System.nanoTime();
+      long ops = runFor(b, iterationMs * 1000000L);
+      time = System.nanoTime() - time;
+      totalBytes += mx.getThreadAllocatedBytes(tid) - bytes;
+      totalOps += ops;
+      perOp[i] = (double)time / ops;
+    }
+    Result r = new Result();
+    r.name = b.name;
+    r.ops = totalOps;
+    r.bytesPerOp = (double)totalBytes / totalOps;
+    for (double t : perOp) r.meanNs += t / iterations;
+    for (double t : perOp) r.stdevNs += (t - r.meanNs) * (t - r.meanNs) / iterations;
+    r.stdevNs = Math.sqrt(r.stdevNs);
+    return r;
+  }
+
+  static void writeJson(ArrayList<Result> results, String path) throws Exception {
+    Writer out = new OutputStreamWriter(new FileOutputStream(path), "UTF-8");
+    out.write("[\n");
+    for (int i = 0; i < results.size(); i++) {
+      Result r = results.get(i);
+      out.write(String.format(Locale.ROOT,
+          "  {\"benchmark\":\"%s\",\"mode\":\"avgt\",\"unit\":\"ns/op\",\"score\":%.1f," +
+          "\"error\":%.1f,\"ops\":%d,\"bytesPerOp\":%.1f}%s\n",
+          r.name, r.meanNs, r.stdevNs, r.ops, r.bytesPerOp, i + 1 < results.size() ? "," : ""));
+    }
+    out.write("]\n");
+    out.close();
+  }
+
+  public static void main(String[] args) throws Exception {
+    String output = "bench_results.json", filter = "";
+    long warmupMs = 1000, iterationMs = 1000;
+    int iterations = 5;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("-o")) output = args[i + 1];
+      else if (args[i].equals("-f")) filter = args[i + 1];
+      else if (args[i].equals("-w")) warmupMs = Long.parseLong(args[i + 1]);
+      else if (args[i].equals("-m")) iterationMs = Long.parseLong(args[i + 1]);
+      else if (args[i].equals("-i")) iterations = Integer.parseInt(args[i + 1]);
+    }
+    ArrayList<Result> results = new ArrayList<Result>();
+    System.out.printf("%-52s %14s %12s %14s\n", "Benchmark", "ns/op", "+/-", "bytes/op");
+    for (Benchmark b : benchmarks()) {
+      if (!b.name.contains(filter)) continue;
+      Result r = measure(b, warmupMs, iterationMs, iterations);
+      results.add(r);
+      System.out.printf("%-52s %14.1f %12.1f %14.1f\n", r.name, r.meanNs, r.stdevNs, r.bytesPerOp);
+    }
+    writeJson(results, output);
+    System.out.println("Results written to " + output);
+  }
+}
@@ -10,14 +10,24 @@
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class BackusNaur {
   
@@ -27,11 +37,17 @@ public class BackusNaur {
   public TreeMap<String, BranchExpr> defs = new TreeMap<String, BranchExpr>();
   //list of symbol for reference, in the order that they are listed
   public Vector<String> symbols = new Vector<String>();
+  //the compiled form of defs, which the matchers run on. Both are
+  //immutable once constructed, and shared by all concurrent matches
+  final Grammar grammar;
+  final ChartParser chartParser;
+  //a hash of the tokens of each definition, to find which definitions an update changes
+  private HashMap<String, Long> sources = new HashMap<String, Long>();
   
   /*************************** Construction ***************************/
   
   /**
-   * Loads a File into a String, including newlines
+   * Loads a File into a String, including newlines, decoding it as UTF-8
    * @param f   a file in the current relative directory
    * @return a  string of the file
    */
@@ -39,8 +55,12 @@ public class BackusNaur {
     StringBuilder sb = new StringBuilder();
     String line;
     try {
-      BufferedReader in = new BufferedReader(new FileReader(f));
-      while ((line = in.readLine()) != null) sb.append(line + "\n");
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+      try {
+        while ((line = in.readLine()) != null) sb.append(line).append('\n');
+      } finally {
+        in.close();
+      }
     } catch (Exception e) {
       throw new Exception("Error loading Backus-Naur definition file." +
                           "\tCannot load file: " + f.getName());
@@ -49,11 +69,27 @@ public class BackusNaur {
   }
   
   /**
-   * Constructor from file
+   * Opens a file of definitions for reading, decoding it as UTF-8, as BatchMain
+   * reads definitions and MappedText reads the texts matched
+   * @param f   a file in the current relative directory
+   * @return    a buffered reader of the file
+   */
+  private static Reader openFile(File f) throws Exception {
+    try {
+      return new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"), 1 << 16);
+    } catch (Exception e) {
+      throw new Exception("Error loading Backus-Naur definition file." +
+                          "\tCannot load file: " + f.getName());
+    }
+  }
+  
+  /**
+   * Constructor from file. The file is read in a single pass, without
+   * first being loaded into memory.
    * @param f   a file in the current relative directory
    */
   public BackusNaur(File f) throws Exception {
-    this(fileToString(f));
+    this(openFile(f));
   }
   
   /**
@@ -61,88 +97,218 @@ public class BackusNaur {
    * @param s   a string of defintiions, separated by new lines
    */
   public BackusNaur(String s) throws Exception {
-    BufferedReader in;
-    in = new BufferedReader(new StringReader(s));
-    int line_num = 0;
-    String line;
-    Vector<String> tokens = new Vector<String>();
-    
-    while ((line = in.readLine()) != null) {
-      line_num++;
-      if ((line = line.trim()).isEmpty()) continue;
-      
-      Vector<String> lineTokens = getTokens(line);      
-      if (lineTokens.size() > 1 && lineTokens.get(1).equals("::=")) {
-        if (!lineTokens.isEmpty()) {
-          try {
-            parseDefinition(lineTokens);
-          } catch (Exception e) {
-            throw new Exception("Line " + line_num + ": " + e.getMessage());
-          }
-        }
-        tokens = lineTokens;
-      } else {
-        tokens.addAll(lineTokens);
-      }
-    }
+    this(new StringReader(s));
+  }
+  
+  /**
+   * Constructor from a stream of definitions, which is read to the end and closed.
+   * Each definition begins on a new line with <symbol> ::= and continues
+   * up to the next definition, so long definitions may span several lines.
+   * @param r   a reader of definitions
+   */
+  public BackusNaur(Reader r) throws Exception {
+    this(null, r);
+  }
+  
+  /**
+   * Constructor from a stream of definitions, reusing whatever is unchanged
+   * from an earlier grammar. A definition whose tokens are the same as in prev
+   * keeps its parsed expression, and its symbol keeps its compiled form.
+   * @param prev  an earlier grammar, or null to build everything
+   * @param r     a reader of definitions
+   */
+  private BackusNaur(BackusNaur prev, Reader r) throws Exception {
+    HashSet<String> changed = new HashSet<String>();
+    readDefinitions(r, prev, changed);
     if (defs.isEmpty())
       throw new Exception("Error: No definitions were recognized.");
-    this.validate();
+    if (prev == null) {
+      this.validate();
+      grammar = new Grammar(defs, symbols);
+      chartParser = new ChartParser(grammar);
+      return;
+    }
+    HashSet<String> removed = new HashSet<String>();
+    for (String symbol : prev.symbols)
+      if (!defs.containsKey(symbol)) removed.add(symbol);
+    revalidate(prev, changed, removed);
+    if (changed.isEmpty() && removed.isEmpty() && symbols.equals(prev.symbols)) {
+      grammar = prev.grammar;
+      chartParser = prev.chartParser;
+      dfa = prev.dfa;
+    } else {
+      grammar = new Grammar(prev.grammar, defs, symbols, changed);
+      chartParser = new ChartParser(grammar);
+    }
+    engine = prev.engine;
+    memoize = prev.memoize;
+    forest = prev.forest;
+    budget = prev.budget;
+    tokenizer = prev.tokenizer;
+    if (prev.compiled != null)
+      compiled = grammar == prev.grammar ? prev.compiled : CompiledMatcher.compile(grammar);
   }
   
   /**
-   * Preprocess a Backus-Naur definition line, splitting it into tokens.
-   * @param s   a line in the Backus-Naur input definition
-   * @return v  a vector of tokens for the input string
+   * @param tokens  the tokens of a definition
+   * @return        a 64-bit FNV-1a hash of the tokens, by which a definition
+   *                is known to be unchanged without keeping its tokens
    */
-  private static Vector<String> getTokens(String s) {
-    //Surround '{', '}', '[', ']', characters with spaces
-    //Convert [] to {}?, which is the same representation
-    s = s.replace("{", " { ").replace("}", " } ");
-    s = s.replace("[", " { ").replace("]", " } ? ");
-    
-    //replace pipe | characters that are not in quotes
-    s = s.replaceAll("[^\\w\"<>']+\\|[^\\w\"<>']+", " | ");
-    
-    Vector<String> tokens = new Vector<String>();
-    
-    boolean quoteOpened = false;
-    String curr = "";
-    for (int i = 0; i < s.length(); i++) {
-      if ((!quoteOpened && s.charAt(i) == ' ') ||
-          (!quoteOpened && s.charAt(i) == '"')) {
-        if (curr.length() > 0) tokens.add(curr);
-        curr = "";
-        if (s.charAt(i) == '"') {
-          quoteOpened = true;
+  private static long hash(Vector<String> tokens) {
+    long h = 0xcbf29ce484222325L;
+    for (String token : tokens) {
+      for (int i = 0; i < token.length(); i++) h = (h ^ token.charAt(i)) * 0x100000001b3L;
+      h = (h ^ 0xFFFF) * 0x100000001b3L; //a noncharacter, between tokens
+    }
+    return h;
+  }
+  
+  /**
+   * Splits a stream of definitions into the tokens of each definition, each
+   * of which is added as soon as the next definition begins
+   * @param r         a reader of definitions, which is read to the end and closed
+   * @param prev      an earlier grammar, or null
+   * @param changed   the set to which each symbol whose definition was parsed is added
+   */
+  private void readDefinitions(Reader r, BackusNaur prev, HashSet<String> changed) throws Exception {
+    GrammarLexer lex = new GrammarLexer(r);
+    Vector<String> tokens = null; //the definition being read
+    int line = 0, column = 0;
+    //the first token of each line is held back until it is known
+    //whether it begins a new definition
+    String first = null;
+    int firstLine = 0, firstColumn = 0;
+    try {
+      while (lex.next()) {
+        String token = lex.token();
+        if (first != null && !lex.firstOnLine() && token.equals("::=")) {
+          if (tokens != null) define(prev, tokens, line, column, changed);
+          tokens = new Vector<String>();
+          tokens.add(first);
+          line = firstLine;
+          column = firstColumn;
+          first = null;
+        } else if (first != null) {
+          if (tokens != null) tokens.add(first);
+          first = null;
         }
-      } else {
-        if (s.charAt(i) == '"') {
-          if (quoteOpened) { //close the quote
-            quoteOpened = false;
-            //split the entire quote into tokens
-            String[] currTokens = curr.split(" ");
-            for (String token : currTokens) tokens.add(token);
-            curr = "";
-          } else {
-            if (curr.length() > 0) tokens.add(curr);
-            curr = "";
-            quoteOpened = true;
-          }
-        } else {
-          curr += s.charAt(i);
+        if (lex.firstOnLine()) {
+          first = token;
+          firstLine = lex.line();
+          firstColumn = lex.column();
+        } else if (tokens != null) {
+          tokens.add(token);
         }
       }
+    } finally {
+      r.close();
+    }
+    if (tokens == null) return;
+    if (first != null) tokens.add(first);
+    define(prev, tokens, line, column, changed);
+  }
+
+  /**
+   * Adds a definition, which is parsed unless its tokens are the same as in
+   * an earlier grammar, whose parsed expression is then kept
+   * @param prev      the earlier grammar, or null
+   * @param tokens    the tokens of the definition
+   * @param line      the line of the definition, for error messages
+   * @param column    the column of the definition, for error messages
+   * @param changed   the set to which the symbol is added if it is parsed
+   */
+  private void define(BackusNaur prev, Vector<String> tokens, int line, int column,
+                      HashSet<String> changed) throws Exception {
+    String symbol = validVariable(tokens.get(0)) ?
+                    tokens.get(0).substring(1, tokens.get(0).length() - 1) : null;
+    long hash = hash(tokens);
+    Long old = prev == null || symbol == null ? null : prev.sources.get(symbol);
+    if (old != null && old == hash && !defs.containsKey(symbol)) {
+      defs.put(symbol, prev.defs.get(symbol));
+      symbols.add(symbol);
+    } else {
+      symbol = parseDefinition(tokens, line, column);
+      changed.add(symbol);
+    }
+    sources.put(symbol, hash);
+  }
+  
+  /**
+   * Rebuilds the grammar from a new version of its definitions. Only the
+   * definitions that differ from this grammar's are parsed, only they and the
+   * definitions that refer to removed symbols are validated again, and the
+   * compiled form of every unchanged symbol is reused. This grammar is not
+   * modified, so it can go on being matched while the update is built.
+   * @param s   a string of definitions, separated by new lines
+   * @return    the updated grammar
+   */
+  public BackusNaur update(String s) throws Exception {
+    return update(new StringReader(s));
+  }
+  
+  /**
+   * Rebuilds the grammar from a new version of its definitions, as update(String)
+   * @param r   a reader of definitions, which is read to the end and closed
+   * @return    the updated grammar
+   */
+  public BackusNaur update(Reader r) throws Exception {
+    return new BackusNaur(this, r);
+  }
+  
+  /**
+   * Constructor from an already compiled grammar. The definitions in defs are
+   * not available, but symbols lists every symbol in declaration order.
+   * @param g           the compiled grammar
+   * @param recursive   whether any symbol of g is defined in terms of itself
+   */
+  private BackusNaur(Grammar g, boolean recursive) {
+    for (int i = 0; i < g.declared; i++) symbols.add(g.symbols[i]);
+    this.recursive = recursive;
+    grammar = g;
+    chartParser = new ChartParser(grammar);
+  }
+  
+  /**
+   * Loads a grammar saved by saveSnapshot(), memory-mapping the file
+   * instead of parsing its definitions
+   * @param f   a compiled grammar file
+   * @return    the loaded grammar
+   */
+  public static BackusNaur loadSnapshot(File f) throws Exception {
+    ByteBuffer in = Snapshot.map(f);
+    boolean recursive = Snapshot.readRecursive(in);
+    return new BackusNaur(new Grammar(in), recursive);
+  }
+  
+  /**
+   * Saves the compiled grammar to a compact binary file, to be loaded by loadSnapshot()
+   * @param f   the file to be written
+   */
+  public void saveSnapshot(File f) throws Exception {
+    Snapshot.write(f, grammar, recursive);
+  }
+  
+  /**
+   * Parses a definition from tokens, prefixing any error with where it begins
+   * @param tokens  the list of tokens
+   * @param line    the line on which the definition begins
+   * @param column  the column at which the definition begins
+   * @return        the symbol defined
+   */
+  private String parseDefinition(Vector<String> tokens, int line, int column) throws Exception {
+    try {
+      return parseDefinition(tokens);
+    } catch (Exception e) {
+      throw new Exception("Line " + line + ", column " + column + ": " + e.getMessage());
     }
-    if (curr.length() > 0) tokens.add(curr);
-    return tokens;
   }
   
   /**
    * Parses a definition from tokens, adding it to def, the collection of definitions
    * @param tokens  the list of tokens
+   * @return        the symbol defined
    */
-  private void parseDefinition(Vector<String> tokens) throws Exception {   
+  private String parseDefinition(Vector<String> tokens) throws Exception {   
     //check to make sure the LHS of the line is in angled brackets
     if (!validVariable(tokens.get(0)))
       throw new Exception("1st token on each line must be enclosed in angle brackets.");
@@ -152,20 +318,11 @@ public class BackusNaur {
     String symbol = tokens.get(0).substring(1, tokens.get(0).length() - 1);
     if (defs.containsKey(symbol))
       throw new Exception("Symbol <" + symbol + "> already declared.");
-    
-    //Current do not support recursive definitions
-    //or quantifiers as in Extended Backus-Naur form
-    for (int i = 2; i < tokens.size(); i++) {
-      if (tokens.get(i).equals(tokens.get(0)))
-        throw new Exception("Recursive definitions are currently unsupported.");
-      if (tokens.get(i).equals("{") || tokens.get(i).equals("}") ||
-          tokens.get(i).equals("{") || tokens.get(i).equals("}"))
-        throw new Exception("Brace {} quantifiers are currently unsupported.");
-    }
     if (tokens.size() < 2)
       throw new Exception("Too few tokens on the line!");
     defs.put(symbol, parseBranchExpr(tokens, 2, tokens.size()));
     symbols.add(symbol);
+    return symbol;
   }
   
   /**
@@ -176,53 +333,58 @@ public class BackusNaur {
    */
   private BranchExpr parseBranchExpr(Vector<String> tokens, int lo, int hi) throws Exception {
     if (lo >= hi) return null;
-    //find the last index of the OR symbol, before index hi
-    //this is because OR operators works like ((A | B) | C), not (A | (B | C))
-    int idx = tokens.lastIndexOf("|", hi - 1);
-    if (idx == -1 || idx < lo) { //no OR signs in the range
+    //find the index of the first OR symbol in the range
+    int idx = tokens.indexOf("|", lo);
+    if (idx == -1 || idx >= hi) { //no OR signs in the range
       BranchExpr be = new BranchExpr(false);
      
       int curr = lo;
       while (curr < hi) {
         if (tokens.get(curr).equals("{")) { //does an open curly bracket exist?
           
-          int lidx = curr, ridx = tokens.indexOf("}", lidx); //find right bracket
+          int lidx = curr, ridx = indexOf(tokens, "}", lidx, hi); //find right bracket
           
           //check for existence and in range
-          if (ridx >= hi || ridx == -1)
+          if (ridx == -1)
             throw new Exception("Mismatched brace quantifier {}.");
           
           //currently no support for multiple level brackets, e.g. {a{b}}
-          if (tokens.indexOf("{", lidx + 1) != -1 &&
-              tokens.indexOf("{", lidx + 1) < ridx) {
+          if (indexOf(tokens, "{", lidx + 1, ridx) != -1) {
             throw new Exception("Currently only 1 level of brace quantifiers {} are supported.");
           }
+          //{ } may be followed by *, + or ?, and on its own means *
           ConcatExpr ce = parseConcatExpr(tokens, lidx + 1, ridx);
-          if (ridx < tokens.size()) {
-            if (tokens.get(ridx).equals("*")) ce.quantifier = '*';
-            else if (tokens.get(ridx).equals("+")) ce.quantifier = '+';
-            else if (tokens.get(ridx).equals("?")) ce.quantifier = '?';
-            else {
-              ce.quantifier = '*';
-              ridx--;
+          ce.quantifier = '*';
+          if (ridx + 1 < hi) {
+            String q = tokens.get(ridx + 1);
+            if (q.equals("*") || q.equals("+") || q.equals("?")) {
+              ce.quantifier = q.charAt(0);
+              ridx++;
             }
-            ridx++;
           }
           be.add(ce);
           curr = ridx + 1; //skip the current position to after the close brace
           continue; //keep parsing!!!!!
         }
         //just parse a normal expression, up to the next open brace { in range
-        int ridx = tokens.indexOf("{", curr + 1);
-        if (ridx == -1 || ridx > hi) ridx = hi;
+        int ridx = indexOf(tokens, "{", curr + 1, hi);
+        if (ridx == -1) ridx = hi;
+        if (indexOf(tokens, "}", curr, ridx) != -1)
+          throw new Exception("Mismatched brace quantifier {}.");
         be.add(parseConcatExpr(tokens, curr, ridx));
         curr = ridx; //move on to the next ConcatExpr to be parsed
       }
       return be;
     }
-    BranchExpr be = new BranchExpr(true,
-                                   parseBranchExpr(tokens, lo, idx),
-                                   parseBranchExpr(tokens, idx + 1, hi));
+    //split the range on every OR sign into a single n-ary union
+    BranchExpr be = new BranchExpr(true);
+    int prev = lo;
+    while (idx != -1 && idx < hi) {
+      be.addAlt(parseBranchExpr(tokens, prev, idx));
+      prev = idx + 1;
+      idx = tokens.indexOf("|", prev);
+    }
+    be.addAlt(parseBranchExpr(tokens, prev, hi));
     return be;
   }
   
@@ -245,69 +407,351 @@ public class BackusNaur {
     return expr;
   }
   
+  /**
+   * Searches for a token only within a range, so that parsing each
+   * alternative of a long definition does not scan the rest of the line
+   * @param tokens  a list of tokens
+   * @param s       the token to search for
+   * @param lo      lower index in the list to consider, inclusive
+   * @param hi      upper index in the list to consider, exclusive
+   * @return        the first index of s in [lo, hi), or -1 if there is none
+   */
+  private static int indexOf(Vector<String> tokens, String s, int lo, int hi) {
+    for (int i = lo; i < hi; i++)
+      if (tokens.get(i).equals(s)) return i;
+    return -1;
+  }
+  
   private static boolean validVariable(String s) {
     return (s.charAt(0) == '<') && (s.charAt(s.length() - 1) == '>');
   }
   
   /**************************** Validation ****************************/
   
-  private HashSet<String> invalidSymbols = new HashSet<String>();
+  //dependency graph: the symbols that each definition refers to, and the
+  //definitions that refer to each symbol
+  private HashMap<String, HashSet<String>> refs = new HashMap<String, HashSet<String>>();
+  private HashMap<String, HashSet<String>> dependents = new HashMap<String, HashSet<String>>();
   
   /**
    * Validate the current BNF, ensuring that all symbols are defined
    * @throws Exception  a message specifying which symbols are undefined
    */
-  private void validate() throws Exception {
-    boolean valid = true;
-    //loops through all definitions, for each definition:
-    //  recurse the tree to ensure that all of its symbols are defined
-    for (BranchExpr be : defs.values())
-      if (!validate(be)) valid = false;
-    if (!valid) 
+  void validate() throws Exception {
+    refs.clear();
+    dependents.clear();
+    HashSet<String> copied = new HashSet<String>();
+    for (String symbol : symbols) link(symbol, copied);
+    checkDefined(symbols);
+    recursive = findRecursion(symbols);
+  }
+  
+  /**
+   * Validates only what an update may have invalidated: the changed definitions
+   * and those referring to removed symbols. The dependency graph of prev is
+   * shared, and its sets are copied only where they change.
+   * @param prev      the grammar being updated, which is valid
+   * @param changed   the symbols whose definitions were added or changed
+   * @param removed   the symbols of prev that are no longer defined
+   * @throws Exception  a message specifying which symbols are undefined
+   */
+  private void revalidate(BackusNaur prev, Set<String> changed, Set<String> removed) throws Exception {
+    refs.putAll(prev.refs);
+    dependents.putAll(prev.dependents);
+    HashSet<String> copied = new HashSet<String>(); //dependents no longer shared with prev
+    for (String symbol : removed) {
+      unlink(symbol, copied);
+      refs.remove(symbol);
+    }
+    for (String symbol : changed) {
+      unlink(symbol, copied);
+      link(symbol, copied);
+    }
+    HashSet<String> check = new HashSet<String>(changed);
+    for (String symbol : removed)
+      if (dependents.containsKey(symbol)) check.addAll(dependents.get(symbol));
+    checkDefined(check);
+    
+    //a new cycle must pass through a changed definition, and the cycle found
+    //before still exists if none of its definitions changed
+    boolean broken = prev.cycle == null;
+    if (!broken)
+      for (String symbol : prev.cycle)
+        if (changed.contains(symbol) || removed.contains(symbol)) broken = true;
+    if (prev.recursive && !broken) {
+      recursive = true;
+      cycle = prev.cycle;
+    } else {
+      recursive = findRecursion(prev.recursive ? symbols : changed);
+    }
+  }
+  
+  /**
+   * Adds the references of a definition to the dependency graph
+   */
+  private void link(String symbol, HashSet<String> copied) {
+    HashSet<String> r = new HashSet<String>();
+    references(defs.get(symbol), r);
+    refs.put(symbol, r);
+    for (String ref : r) dependentsOf(ref, copied).add(symbol);
+  }
+  
+  /**
+   * Removes the references of a definition from the dependency graph
+   */
+  private void unlink(String symbol, HashSet<String> copied) {
+    if (!refs.containsKey(symbol)) return;
+    for (String ref : refs.get(symbol)) dependentsOf(ref, copied).remove(symbol);
+  }
+  
+  /**
+   * @param symbol  a symbol, which need not be defined
+   * @param copied  the symbols whose sets of dependents may be modified
+   * @return        the modifiable set of definitions referring to symbol
+   */
+  private HashSet<String> dependentsOf(String symbol, HashSet<String> copied) {
+    HashSet<String> d = dependents.get(symbol);
+    if (d == null || !copied.contains(symbol)) {
+      d = d == null ? new HashSet<String>() : new HashSet<String>(d);
+      dependents.put(symbol, d);
+      copied.add(symbol);
+    }
+    return d;
+  }
+  
+  /**
+   * @param check   the definitions to be checked
+   * @throws Exception  a message specifying which symbols are undefined
+   */
+  private void checkDefined(Iterable<String> check) throws Exception {
+    TreeSet<String> invalidSymbols = new TreeSet<String>();
+    for (String symbol : check)
+      for (String ref : refs.get(symbol))
+        if (!defs.containsKey(ref)) invalidSymbols.add(ref);
+    if (!invalidSymbols.isEmpty()) 
       throw new Exception("Undefined symbol(s): " + invalidSymbols + "\n" +
                           "Maybe you should load some dictionaries?");
   }
   
+  private boolean recursive; //whether any definition refers back to itself
+  private Set<String> cycle; //symbols on the path to the cycle found, if recursive
+  
+  /**
+   * @return  whether any symbol is directly or indirectly defined in terms of itself
+   */
+  public boolean isRecursive() {
+    return recursive;
+  }
+
+  /**
+   * @param s   a defined symbol
+   * @return    whether s can match an empty text
+   */
+  public boolean isNullable(String s) throws Exception {
+    return grammar.lookahead.nullable(definedId(s));
+  }
+
+  /**
+   * @param s   a defined symbol
+   * @return    the literals (in lower case) that a match of s can begin with,
+   *            or null if there are more than can be stored
+   */
+  public TreeSet<String> getFirst(String s) throws Exception {
+    return literalSet(grammar.lookahead.firstSet(definedId(s)));
+  }
+
+  /**
+   * @param s   a defined symbol
+   * @return    the literals (in lower case) that can come right after s in a
+   *            match of any symbol, or null if there are more than can be stored
+   */
+  public TreeSet<String> getFollow(String s) throws Exception {
+    return literalSet(grammar.lookahead.followSet(definedId(s)));
+  }
+
+  private int definedId(String s) throws Exception {
+    int sym = grammar.symbolId(s);
+    if (sym < 0)
+      throw new Exception("Error: symbol <" + s + "> not defined.");
+    return sym;
+  }
+
+  private TreeSet<String> literalSet(int[] ids) {
+    if (ids == null) return null;
+    TreeSet<String> set = new TreeSet<String>();
+    for (int id : ids) set.add(grammar.literals[id]);
+    return set;
+  }
+
   /**
-   * @param be  BranchExpr to check validity
-   * @return    whether be's symbols are all defined
+   * Searches for a cycle reachable from some symbols, recording it in cycle
+   * @param from  the symbols to search from
+   * @return      whether a cycle was found
    */
-  private boolean validate(BranchExpr be) {
-    if (be.hasRHS)
-      return validate(be.lhs) && validate(be.rhs);
-    boolean valid = true;
-    for (int i = 0; i < be.expr.size(); i++)
-      if (!validate(be.expr.get(i))) valid = false;
-    return valid;
+  private boolean findRecursion(Iterable<String> from) {
+    HashSet<String> visited = new HashSet<String>();
+    for (String symbol : from) {
+      HashSet<String> path = new HashSet<String>();
+      if (findCycle(symbol, visited, path)) {
+        cycle = path;
+        return true;
+      }
+    }
+    cycle = null;
+    return false;
   }
   
   /**
-   * @param ce  ConcatExpr to check validity
-   * @return    whether ce's symbols are all defined
+   * Depth-first search for a cycle in the references between definitions.
+   * The search keeps its own stack, so long chains of references cannot
+   * overflow the call stack.
+   * @param symbol    the symbol to start from
+   * @param visited   symbols whose references have been or are being explored
+   * @param path      symbols on the current path of the search
+   * @return          whether a cycle is reachable from symbol
    */
-  private boolean validate(ConcatExpr ce) {
-    boolean valid = true;
-    for (int i = 0; i < ce.items.size(); i++) {
-      if (ce.items.get(i).isLiteral) continue;
-      //make sure the symbol is already defined
-      if (!defs.containsKey(ce.items.get(i).value)) {
-        valid = false;
-        invalidSymbols.add(ce.items.get(i).value);
+  private boolean findCycle(String symbol, HashSet<String> visited, HashSet<String> path) {
+    if (!visited.add(symbol)) return false;
+    ArrayDeque<String> stack = new ArrayDeque<String>();
+    ArrayDeque<Iterator<String>> next = new ArrayDeque<Iterator<String>>();
+    path.add(symbol);
+    stack.push(symbol);
+    next.push(referencesOf(symbol));
+    while (!stack.isEmpty()) {
+      if (!next.peek().hasNext()) { //fully explored
+        path.remove(stack.pop());
+        next.pop();
+        continue;
       }
+      String ref = next.peek().next();
+      if (path.contains(ref)) return true;
+      if (!visited.add(ref)) continue;
+      path.add(ref);
+      stack.push(ref);
+      next.push(referencesOf(ref));
     }
-    return valid;
+    return false;
+  }
+  
+  private Iterator<String> referencesOf(String symbol) {
+    HashSet<String> r = refs.get(symbol);
+    return r == null ? Collections.<String>emptyIterator() : r.iterator();
+  }
+  
+  /**
+   * @param be    BranchExpr whose referenced symbols are to be collected
+   * @param refs  the set to which referenced symbols are added
+   */
+  private static void references(BranchExpr be, HashSet<String> refs) {
+    if (be == null) return;
+    if (be.isUnion) {
+      for (BranchExpr alt : be.alts) references(alt, refs);
+      return;
+    }
+    for (ConcatExpr ce : be.expr)
+      for (ConcatExpr.Item item : ce.items)
+        if (!item.isLiteral) refs.add(item.value);
   }
   
   /*************************** Matching Input Strings ***************************/
   
-  //temporary structure to store results that are displayed
-  private HashMap<String, TreeSet<String>> results;
+  /**
+   * Matching engines: recursive descent (with optional memoization),
+   * an Earley chart parser, which also handles recursive definitions,
+   * or a token-level automaton, which finds the same matches as the chart
+   * parser in a single pass over the text
+   */
+  public enum Engine { DESCENT, CHART, DFA };
+  
+  private volatile Engine engine = Engine.DESCENT;
+  private volatile TokenDfa dfa; //built on first use, and only for non-recursive grammars
+  
+  /**
+   * Selects the matching engine. Recursive grammars are always matched
+   * by the chart parser, since recursive descent cannot terminate on them
+   * and their languages have no finite automaton. So are grammars whose
+   * automaton would be too large.
+   * @param e   the engine to be used by subsequent calls to matches()
+   */
+  public void setEngine(Engine e) {
+    engine = e;
+  }
+  
+  private volatile boolean forest = false;
+  
+  /**
+   * Enables or disables building the forest of every parse of a matched
+   * text, which is then returned by MatchResult.getForest(). Texts are then
+   * always matched by the chart parser, which finds every parse.
+   * @param b   whether subsequent calls to matches() should build a forest
+   */
+  public void setForest(boolean b) {
+    forest = b;
+  }
+  
+  private volatile CompiledMatcher compiled; //null if matching is interpreted
+  
+  /**
+   * Enables or disables the compiled tier of the recursive descent matcher,
+   * which generates a class with a method per symbol and per alternative of
+   * the grammar, for grammars that stay loaded long enough for the JIT to
+   * compile them. Grammars built from this one by update() are compiled too.
+   * Before Java 15, which added the hidden classes it is loaded as, there is
+   * no compiled tier, and matching stays interpreted.
+   * @param b   whether subsequent calls to matches() should run compiled code
+   * @throws Exception  if the class could not be generated or loaded
+   */
+  public void setCompiled(boolean b) throws Exception {
+    if (!b) compiled = null;
+    else if (compiled == null) compiled = CompiledMatcher.compile(grammar);
+  }
+  
+  private volatile boolean memoize = true;
+  private volatile MatchResult lastResult; //of the most recently finished call
+  
+  /**
+   * Enables or disables memoization of (symbol, position) outcomes
+   * @param b   whether subsequent calls to matches() should memoize
+   */
+  public void setMemoize(boolean b) {
+    memoize = b;
+  }
+  
+  /**
+   * @return  the number of symbol matches answered from the memo table
+   *          during the most recently finished call to matches()
+   */
+  public long getMemoHits() {
+    return lastResult == null ? 0 : lastResult.getMemoHits();
+  }
+  
+  /**
+   * @return  the number of symbol matches that had to be computed
+   *          during the most recently finished call to matches()
+   */
+  public long getMemoMisses() {
+    return lastResult == null ? 0 : lastResult.getMemoMisses();
+  }
   
-  //maximum search time (ticks) and maximum depth
-  private static final long MAX_TIME = 2L*1000000000L; //2 seconds
-  private static final int MAX_DEPTH = 2000; //maximum recursion depth
-  private long startTime; //System.nanoTime() when the search started
-  private boolean recursedTooDeep, searchedTooLong;
+  volatile MatchBudget budget = MatchBudget.INTERACTIVE;
+  
+  /**
+   * Sets the limits of each match, which default to MatchBudget.INTERACTIVE
+   * @param b   the budget of subsequent calls to match() without one
+   */
+  public void setBudget(MatchBudget b) {
+    budget = b;
+  }
+  
+  volatile Tokenizer tokenizer = Tokenizer.DEFAULT;
+  
+  /**
+   * Sets how texts are split into tokens, which defaults to Tokenizer.DEFAULT
+   * @param t   the tokenizer of subsequent calls to match() and scan()
+   */
+  public void setTokenizer(Tokenizer t) {
+    tokenizer = t;
+  }
   
   /**
    * Performs a matching attempt, storing all found matches into m, regardless of matching success
@@ -315,103 +759,275 @@ public class BackusNaur {
    * @param t   text of the user to be tokenized and matched
    * @param m   an <em>already instantiated</em> HashMap in which the result is stored
    * @return    whether the definition for the symbol s matches the text t
+   * @throws Exception  if the search ran out of budget before completing
    */
   public boolean matches(String s, String t, HashMap<String, TreeSet<String>> m) throws Exception {
-    if (!defs.containsKey(s))
+    MatchResult res = match(s, t);
+    if (!res.isComplete())
+      throw new Exception("Note: " + res.getStopMessage());
+    res.addTo(m);
+    return res.isMatched();
+  }
+  
+  /**
+   * Performs a matching attempt, recording all found matches as spans, regardless of matching success.
+   * All per-call state is kept in the result and a MatchContext, so this may be
+   * called from several threads at once.
+   * @param s   symbol in to be matched, which must be a key of defs
+   * @param t   text of the user to be tokenized and matched
+   * @return    the result, whose sub-matches are only rendered to Strings on request
+   */
+  public MatchResult match(String s, CharSequence t) throws Exception {
+    return match(s, t, budget, null);
+  }
+  
+  /**
+   * Matches the UTF-8 text of a file, which is memory-mapped and decoded as
+   * it is tokenized rather than loaded into memory (see MappedText)
+   * @param s   symbol in to be matched, which must be a key of defs
+   * @param f   the file to be matched
+   * @return    the match status and every sub-match found
+   */
+  public MatchResult match(String s, File f) throws Exception {
+    return match(s, new MappedText(f), budget, null);
+  }
+  
+  /**
+   * Matches a text, publishing progress that another thread may follow
+   * @param s         symbol in to be matched, which must be a key of defs
+   * @param t         the text to be matched
+   * @param progress  to which progress is published, or null
+   * @return          the match status and every sub-match found
+   */
+  public MatchResult match(String s, CharSequence t, MatchProgress progress) throws Exception {
+    return match(s, t, budget, progress);
+  }
+  
+  /**
+   * Matches a text within a budget. If the budget runs out, or progress is
+   * cancelled, the search stops and the sub-matches found so far are returned,
+   * with the reason and the statistics of the search.
+   * @param s         symbol in to be matched, which must be a key of defs
+   * @param t         the text to be matched, which is tokenized in place and
+   *                  must not change while the result is in use
+   * @param b         the limits of the search
+   * @param progress  to which progress is published, or null
+   * @return          the match status and every sub-match found
+   */
+  public MatchResult match(String s, CharSequence t, MatchBudget b, MatchProgress progress) throws Exception {
+    int sym = grammar.symbolId(s);
+    if (sym < 0)
       throw new Exception("Error: symbol <" + s + "> not defined.");
     
-    //remove all non-word characters 0-9, a-z, A-Z, then split into tokens
-    Vector<String> tTokens = new Vector<String>(
-                                  Arrays.asList(t.replaceAll("[.,!@#$%^&*()]", "").split("\\s+")));
-    recursedTooDeep = false;
-    searchedTooLong = false;
-    results = m;
-    startTime = System.nanoTime();
-    int endidx = match(defs.get(s), tTokens, 0, 0);
-    if (recursedTooDeep)
-      throw new Exception("Note: Some searches terminated early due too recursion too deep.");
-    if (searchedTooLong)
-      throw new Exception("Note: Search took too long and was terminated early.");
-    if (endidx == tTokens.size()) {
-      String toks = vectorToStr(tTokens, 0, tTokens.size());
-      if (results.get(s) == null) results.put(s, new TreeSet<String>());
-      results.get(s).add(toks);
+    MatchResult res = tokenize(t);
+    int[] lits = literalIds(res);
+    if (progress != null) progress.start(lits.length);
+    int endidx;
+    int accepted = TokenDfa.TOO_LARGE;
+    if (engine == Engine.DFA && !recursive && !forest) {
+      accepted = tokenDfa().match(sym, lits, res, b, progress);
+      if (accepted == TokenDfa.TOO_LARGE) res = res.cleared();
+    }
+    if (accepted != TokenDfa.TOO_LARGE) {
+      endidx = accepted > 0 ? lits.length : -1;
+    } else if (!descends()) {
+      int parsed = chartParser.parse(sym, lits, res, b, progress, forest);
+      endidx = parsed > 0 ? lits.length : -1;
+    } else if (lits.length == 0) {
+      //the descent matcher takes the end of the text to match any symbol, so
+      //an empty text is matched only by symbols that can match nothing
+      endidx = grammar.lookahead.nullable(sym) ? 0 : -1;
+    } else {
+      MatchContext ctx = new MatchContext(grammar, lits, res, memoize, b, progress, compiled);
+      endidx = ctx.run(sym);
+      res.memoHits = ctx.memoHits;
+      res.memoMisses = ctx.memoMisses;
     }
-    return endidx == tTokens.size();
+    res.matched = endidx == lits.length;
+    if (res.matched) res.add(sym, 0, lits.length);
+    if (progress != null) progress.update(lits.length, res.size());
+    lastResult = res;
+    return res;
   }
   
   /**
-   * Recursive helper function for matching BranchExpr
-   * @param ce      BranchExpr to attempt to match
-   * @param tokens  list of tokens
-   * @param lo      the index of the first element in tokens to start the matching
-   * @param depth   the current depth of the recursion, used to terminate early
-   * @return        one more than the index up to where ce is matched in tokens
+   * Splits a text into tokens in place, as offsets into it
+   * @return  a result with no spans yet, over the tokens
    */
-  private int match(BranchExpr be, Vector<String> tokens, int lo, int depth) {
-    if (lo == tokens.size()) return lo;
-    if (System.nanoTime() - startTime > MAX_TIME) {
-      searchedTooLong = true;
-      return -1;
-    }
-    if (depth > MAX_DEPTH) {
-      recursedTooDeep = true;
-      return -1;
+  MatchResult tokenize(CharSequence t) {
+    Tokenizer tk = tokenizer;
+    IntList bounds = new IntList();
+    tk.tokenize(t, 0, t.length(), bounds);
+    return new MatchResult(grammar, t, bounds.a, bounds.size / 2, tk);
+  }
+  
+  /**
+   * Case-folds and interns each token once, so literals compare as ints
+   */
+  int[] literalIds(MatchResult res) {
+    int[] lits = new int[res.tokenCount()];
+    for (int i = 0; i < lits.length; i++)
+      lits[i] = grammar.literalId(res.getText(), res.tokenStart(i), res.tokenEnd(i), res.tokenizer);
+    return lits;
+  }
+  
+  /**
+   * Finds every occurrence of a symbol anywhere inside a text
+   * @param s             symbol to be found, which must be a key of defs
+   * @param t             the text to be scanned
+   * @param overlapping   whether every occurrence is wanted, or only the
+   *                      longest at the leftmost start, then from where it ends
+   * @return              the occurrences, as the only spans of the result
+   */
+  public MatchResult scan(String s, CharSequence t, boolean overlapping) throws Exception {
+    return scan(s, t, overlapping, budget, null);
+  }
+  
+  /**
+   * Finds every occurrence of a symbol anywhere inside the UTF-8 text of a
+   * file, which is memory-mapped and decoded as it is tokenized
+   * @param s             symbol to be found, which must be a key of defs
+   * @param f             the file to be scanned
+   * @param overlapping   whether every occurrence is wanted, or only the
+   *                      longest at the leftmost start, then from where it ends
+   * @return              the occurrences, as the only spans of the result
+   */
+  public MatchResult scan(String s, File f, boolean overlapping) throws Exception {
+    return scan(s, new MappedText(f), overlapping, budget, null);
+  }
+  
+  /**
+   * Finds every occurrence of a symbol anywhere inside a text, within a
+   * budget. Only the tokens in the FIRST set of the symbol are tried as the
+   * start of an occurrence. Non-recursive grammars are scanned with their
+   * automaton, and all others by the chart parser, which starts the symbol
+   * afresh at each such token, and keeps only the parts of the chart that
+   * spans still open can refer to. A budget that runs out, or progress that
+   * is cancelled, stops the scan with the occurrences found so far.
+   * @param s             symbol to be found, which must be a key of defs
+   * @param t             the text to be scanned
+   * @param overlapping   whether every occurrence is wanted, or only the
+   *                      longest at the leftmost start, then from where it ends
+   * @param b             the limits of the scan
+   * @param progress      to which progress is published, or null
+   * @return              the occurrences, as the only spans of the result, by
+   *                      start and then longest first; isMatched() tells
+   *                      whether there were any
+   */
+  public MatchResult scan(String s, CharSequence t, boolean overlapping, MatchBudget b,
+                          MatchProgress progress) throws Exception {
+    int sym = grammar.symbolId(s);
+    if (sym < 0)
+      throw new Exception("Error: symbol <" + s + "> not defined.");
+    MatchResult res = tokenize(t);
+    int[] lits = literalIds(res);
+    //the literals an occurrence may begin with, all of them if too many to list
+    boolean[] first = new boolean[grammar.literals.length];
+    if (!grammar.lookahead.firstKnown(sym)) Arrays.fill(first, true);
+    else for (int lit : grammar.lookahead.firstSet(sym)) first[lit] = true;
+    if (progress != null) progress.start(lits.length);
+    int scanned = TokenDfa.TOO_LARGE;
+    if (!recursive) {
+      scanned = tokenDfa().scan(sym, lits, first, overlapping, res, b, progress);
+      if (scanned == TokenDfa.TOO_LARGE) res = res.cleared();
     }
-    if (!be.hasRHS) {
-      int id = lo;
-      for (int i = 0; i < be.expr.size(); i++) {
-        if (id >= tokens.size()) return -1;
-        id = match(be.expr.get(i), tokens, id, depth + 1);
-        if (id < 0) return id;
-      }
-      return id;
+    if (scanned == TokenDfa.TOO_LARGE) chartParser.scan(sym, lits, first, res, b, progress);
+    res.sortSpans(overlapping);
+    res.matched = res.size() > 0;
+    if (progress != null) progress.update(lits.length, res.size());
+    lastResult = res;
+    return res;
+  }
+  
+  /**
+   * @return  whether match() runs the recursive descent matcher
+   */
+  boolean descends() {
+    return engine == Engine.DESCENT && !recursive && !forest;
+  }
+  
+  /**
+   * @return  the automaton of the grammar, built on first use
+   */
+  private TokenDfa tokenDfa() {
+    TokenDfa d = dfa;
+    if (d != null) return d;
+    synchronized (this) {
+      if (dfa == null) dfa = new TokenDfa(grammar);
+      return dfa;
     }
-    return Math.max(match(be.lhs, tokens, lo, depth + 1),
-                    match(be.rhs, tokens, lo, depth + 1));
-  }
-  
-  /**
-   * Recursive helper function for matching ConcatExpr
-   * @param ce      ConcatExpr to attempt to match
-   * @param tokens  list of tokens
-   * @param lo      the index of the first element in tokens to start the matching
-   * @param depth   the current depth of the recursion, used to terminate early
-   * @return        one more than the index up to where ce is matched in tokens
-   */
-  private int match(ConcatExpr ce, Vector<String> tokens, int lo, int depth) {
-    int id = lo;
-    for (int i = 0; i < ce.items.size(); i++) {
-      if (id >= tokens.size()) return -1;
-      if (ce.items.get(i).isLiteral) {
-        if (!tokens.get(id).toLowerCase().equals(ce.items.get(i).value.toLowerCase()))
-          return -1;
-        id++; //move to next token
-      } else { //try to match the symbol
-        int prev = id;
-        id = match(defs.get(ce.items.get(i).value), tokens, id, depth + 1);
-        if (id < 0) return id;
-        if (!results.containsKey(ce.items.get(i).value))
-          results.put(ce.items.get(i).value, new TreeSet<String>());
-        results.get(ce.items.get(i).value).add(vectorToStr(tokens, prev, id));
-        if (id >= tokens.size()) return id;
-      }
+  }
+  
+  private static ForkJoinPool pool; //shared by calls to matchAll() without a pool
+  
+  /**
+   * Matches many texts in parallel on a shared ForkJoinPool with one thread per core
+   * @param s       symbol in to be matched, which must be a key of defs
+   * @param texts   the texts to be matched
+   * @return        the result for each text, in the same order as texts
+   */
+  public List<MatchResult> matchAll(String s, List<String> texts) throws Exception {
+    synchronized (BackusNaur.class) {
+      if (pool == null) pool = new ForkJoinPool();
     }
-    return id;
+    return matchAll(s, texts, pool);
+  }
+  
+  /**
+   * Matches many texts in parallel
+   * @param s       symbol in to be matched, which must be a key of defs
+   * @param texts   the texts to be matched
+   * @param pool    the pool on which the matching is run
+   * @return        the result for each text, in the same order as texts
+   * @throws Exception  the first exception thrown while matching any of the texts
+   */
+  public List<MatchResult> matchAll(String s, List<String> texts, ForkJoinPool pool) throws Exception {
+    MatchResult[] res = new MatchResult[texts.size()];
+    MatchTask task = new MatchTask(s, texts, res, 0, res.length);
+    pool.invoke(task);
+    if (task.error != null) throw task.error;
+    return Arrays.asList(res);
   }
   
   /**
-   * Converts a Vector of the results to a String to be displayed in ResultFrame
-   * @param v   Vector of Strings to concatenate
-   * @param lo  lower bound of indices to consider, inclusive
-   * @param hi  upper bound of indices to consider, exclusive
-   * @return    the converted String
+   * Matches a range of texts, splitting it in half until it is small enough
    */
-  private static String vectorToStr(Vector<String> v, int lo, int hi) {
-    if (lo < 0 || hi > v.size()) return "";
-    String res = "[ ";
-    for (int i = lo; i < hi; i++) res += v.get(i) + " ";
-    return res + "]";
+  private class MatchTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final int THRESHOLD = 16; //texts matched without splitting further
+    
+    private final String s;
+    private final List<String> texts;
+    private final MatchResult[] res;
+    private final int lo, hi;
+    Exception error; //the first exception in the range, if any
+    
+    MatchTask(String s, List<String> texts, MatchResult[] res, int lo, int hi) {
+      this.s = s;
+      this.texts = texts;
+      this.res = res;
+      this.lo = lo;
+      this.hi = hi;
+    }
+    
+    @Override
+    protected void compute() {
+      if (hi - lo <= THRESHOLD) {
+        for (int i = lo; i < hi && error == null; i++) {
+          try {
+            res[i] = match(s, texts.get(i));
+          } catch (Exception e) {
+            error = e;
+          }
+        }
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      MatchTask left = new MatchTask(s, texts, res, lo, mid);
+      MatchTask right = new MatchTask(s, texts, res, mid, hi);
+      invokeAll(left, right);
+      error = left.error != null ? left.error : right.error;
+    }
   }
   
   /*************************** Testing ***************************/
@@ -421,6 +1037,7 @@ public class BackusNaur {
     HashMap<String, TreeSet<String>> res = new HashMap<String, TreeSet<String>>();
     boolean matched = bn.matches("fruit", "apple", res);
     if (matched) System.out.println("matched");
+    System.out.printf("Memo hits: %d, misses: %d\n", bn.getMemoHits(), bn.getMemoMisses());
     for (String symbol : res.keySet()) {
       System.out.printf("Matches for <%s>:\n", symbol);
       TreeSet<String> matches = res.get(symbol);
@@ -0,0 +1,239 @@
+/**
+ * Headless front-end that streams a corpus through a grammar.
+ * Each line of the input file is matched as a separate document, and one
+ * JSON record per line is written with the match status and all sub-match spans.
+ * A summary of throughput and latency is printed to standard error at the end.
+ *
+ * Usage:
+ *   java BatchMain (-g grammar.bn [-d dictionary.bnd]... | -c compiled.bns) -s symbol
+ *                  [-i input.txt] [-o output.jsonl] [-e descent|chart|dfa|compiled] [-w compiled.bns]
+ *                  [-b batch|interactive] [-t max-ms-per-line] [-f leftmost|overlapping]
+ * Input defaults to standard input, and output to standard output.
+ * Each line is matched within MatchBudget.BATCH unless -b or -t say otherwise;
+ * a line that runs out of budget is reported with its partial spans and the
+ * limit it reached.
+ * A grammar loaded with -g and -d can be saved with -w as a compiled snapshot,
+ * which later runs load with -c without parsing any definitions.
+ * -e compiled matches by recursive descent with the grammar compiled to JVM
+ * code (see CompiledMatcher), for long runs over large corpora.
+ * -f finds every occurrence of the symbol anywhere in each line instead of
+ * matching whole lines, either only non-overlapping ones, leftmost and
+ * longest first, or all of them.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.util.Vector;
+
+public class BatchMain {
+
+  //the latency of each line is counted in a histogram of fixed size: each
+  //power of two of nanoseconds is split into 2^SUB_BITS buckets, so that
+  //percentiles are within about 3% however many lines are read
+  private static final int SUB_BITS = 5;
+  private static final int BUCKETS = 64 << SUB_BITS;
+
+  private static void usage() {
+    System.err.println("Usage: java BatchMain (-g grammar.bn [-d dictionary.bnd]... | -c compiled.bns) -s symbol\n" +
+                       "                      [-i input.txt] [-o output.jsonl] [-e descent|chart|dfa|compiled] [-w compiled.bns]\n" +
+                       "                      [-b batch|interactive] [-t max-ms-per-line] [-f leftmost|overlapping]");
+    System.exit(2);
+  }
+
+  public static void main(String[] args) throws Exception {
+    //definition files are streamed one after another, separated by newlines
+    Vector<InputStream> defs = new Vector<InputStream>();
+    String symbol = null, input = null, output = null, compiled = null, save = null;
+    BackusNaur.Engine engine = BackusNaur.Engine.DESCENT;
+    boolean compile = false;
+    String find = null; //leftmost or overlapping, if occurrences are to be found
+    MatchBudget budget = MatchBudget.BATCH;
+    long maxMillis = -1;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 >= args.length) usage();
+      String opt = args[i], val = args[++i];
+      if (opt.equals("-g") || opt.equals("-d")) {
+        defs.add(new FileInputStream(val));
+        defs.add(new ByteArrayInputStream(new byte[] { '\n' }));
+      } else if (opt.equals("-c")) {
+        compiled = val;
+      } else if (opt.equals("-w")) {
+        save = val;
+      } else if (opt.equals("-s")) {
+        symbol = val;
+      } else if (opt.equals("-i")) {
+        input = val;
+      } else if (opt.equals("-o")) {
+        output = val;
+      } else if (opt.equals("-e")) {
+        compile = val.equals("compiled");
+        try {
+          engine = compile ? BackusNaur.Engine.DESCENT : BackusNaur.Engine.valueOf(val.toUpperCase());
+        } catch (IllegalArgumentException e) {
+          usage();
+        }
+      } else if (opt.equals("-b")) {
+        budget = val.equals("interactive") ? MatchBudget.INTERACTIVE : MatchBudget.BATCH;
+      } else if (opt.equals("-t")) {
+        maxMillis = Long.parseLong(val);
+      } else if (opt.equals("-f")) {
+        if (!val.equals("leftmost") && !val.equals("overlapping")) usage();
+        find = val;
+      } else {
+        usage();
+      }
+    }
+    if (defs.isEmpty() == (compiled == null) || symbol == null) usage();
+
+    BackusNaur bn = compiled != null ? BackusNaur.loadSnapshot(new File(compiled))
+                                     : new BackusNaur(new BufferedReader(new InputStreamReader(
+                                           new SequenceInputStream(defs.elements()), "UTF-8"), 1 << 16));
+    if (save != null) bn.saveSnapshot(new File(save));
+    bn.setEngine(engine);
+    bn.setCompiled(compile);
+    bn.setBudget(maxMillis < 0 ? budget : budget.withMaxTime(maxMillis));
+
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        input == null ? System.in : new FileInputStream(input), "UTF-8"));
+    Writer out = new BufferedWriter(new OutputStreamWriter(
+        output == null ? System.out : new FileOutputStream(output), "UTF-8"));
+
+    long[] latencies = new long[BUCKETS];
+    int lines = 0, matched = 0, stopped = 0, errors = 0;
+    long start = System.nanoTime();
+    String line;
+    StringBuilder record = new StringBuilder();
+    while ((line = in.readLine()) != null) {
+      record.setLength(0);
+      record.append("{\"line\":").append(lines + 1);
+      long t = System.nanoTime();
+      try {
+        MatchResult res = find == null ? bn.match(symbol, line)
+                                       : bn.scan(symbol, line, find.equals("overlapping"));
+        t = System.nanoTime() - t;
+        if (res.isMatched()) matched++;
+        if (!res.isComplete()) stopped++;
+        appendResult(record, res);
+      } catch (Exception e) {
+        t = System.nanoTime() - t;
+        errors++;
+        record.append(",\"error\":");
+        //engine failures such as NullPointerException carry no message
+        appendString(record, e.getMessage() != null ? e.getMessage() : e.toString());
+      }
+      record.append(",\"micros\":").append(t / 1000).append("}\n");
+      out.write(record.toString());
+      latencies[bucket(t)]++;
+      lines++;
+    }
+    out.flush();
+    if (output != null) out.close();
+    in.close();
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.err.printf("%d lines, %d matched, %d stopped early, %d errors in %.3f s (%.1f lines/sec)\n",
+                      lines, matched, stopped, errors, seconds, lines / seconds);
+    System.err.printf("latency p50: %.3f ms, p99: %.3f ms\n",
+                      percentile(latencies, lines, 0.50) / 1e6,
+                      percentile(latencies, lines, 0.99) / 1e6);
+  }
+
+  /**
+   * @param nanos   a latency
+   * @return        the bucket of the histogram in which it is counted
+   */
+  private static int bucket(long nanos) {
+    if (nanos < 1 << SUB_BITS) return (int)Math.max(0, nanos);
+    int exp = 63 - Long.numberOfLeadingZeros(nanos);
+    int sub = (int)(nanos >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+    return ((exp - SUB_BITS + 1) << SUB_BITS) | sub;
+  }
+
+  /**
+   * @param b   a bucket of the histogram
+   * @return    the smallest latency counted in it
+   */
+  private static long lowest(int b) {
+    if (b < 1 << SUB_BITS) return b;
+    int exp = (b >>> SUB_BITS) + SUB_BITS - 1;
+    return ((1L << SUB_BITS) | (b & ((1 << SUB_BITS) - 1))) << (exp - SUB_BITS);
+  }
+
+  /**
+   * @param counts  the number of latencies in each bucket
+   * @param n       the number of latencies
+   * @param p       the fraction, between 0 and 1
+   * @return        the middle of the bucket of the smallest latency at or
+   *                above fraction p of all latencies
+   */
+  private static long percentile(long[] counts, int n, double p) {
+    if (n == 0) return 0;
+    long rank = Math.max(1, (long)Math.ceil(p * n)), seen = 0;
+    int b = 0;
+    while ((seen += counts[b]) < rank) b++;
+    return (lowest(b) + lowest(b + 1) - 1) / 2;
+  }
+
+  /**
+   * Appends the match status, search statistics and spans of a result as JSON fields
+   */
+  private static void appendResult(StringBuilder sb, MatchResult res) {
+    sb.append(",\"matched\":").append(res.isMatched());
+    sb.append(",\"complete\":").append(res.isComplete());
+    if (!res.isComplete())
+      sb.append(",\"stopped\":\"").append(res.getStopReason().toString().toLowerCase()).append('"');
+    sb.append(",\"steps\":").append(res.getSteps());
+    sb.append(",\"tokens\":").append(res.tokenCount());
+    sb.append(",\"spans\":[");
+    for (int i = 0; i < res.size(); i++) {
+      if (i > 0) sb.append(',');
+      sb.append("{\"symbol\":");
+      appendString(sb, res.symbol(i));
+      sb.append(",\"start\":").append(res.start(i));
+      sb.append(",\"end\":").append(res.end(i));
+      //character offsets of the span in the line
+      if (res.end(i) > res.start(i)) {
+        sb.append(",\"from\":").append(res.tokenStart(res.start(i)));
+        sb.append(",\"to\":").append(res.tokenEnd(res.end(i) - 1));
+      }
+      sb.append(",\"text\":");
+      StringBuilder text = new StringBuilder();
+      for (int t = res.start(i); t < res.end(i); t++) {
+        if (t > res.start(i)) text.append(' ');
+        text.append(res.token(t));
+      }
+      appendString(sb, text.toString());
+      sb.append('}');
+    }
+    sb.append(']');
+  }
+
+  /**
+   * Appends a String as a quoted and escaped JSON string
+   */
+  private static void appendString(StringBuilder sb, String s) {
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') sb.append('\\').append(c);
+      else if (c == '\n') sb.append("\\n");
+      else if (c == '\r') sb.append("\\r");
+      else if (c == '\t') sb.append("\\t");
+      else if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+      else sb.append(c);
+    }
+    sb.append('"');
+  }
+}
@@ -1,8 +1,8 @@
 /**
  * BranchExpr represents a node in the syntax tree
  * 
- * If hasRHS is false, then BranchExpr is a leaf node.
- * Otherwise, the possible matches are two lhs or rhs BranchExpr.
+ * If isUnion is false, then BranchExpr is a leaf node.
+ * Otherwise, the possible matches are any one of the alternatives.
  * The Vector expr stores a bunch of symbols or literals.
  * 
  * @author    Alex Li <alextrovert@gmail.com>
@@ -14,38 +14,37 @@ import java.util.Vector;
 class BranchExpr {
   
   //A series of ConcatExpr - the text must match ALL OF THESE in order
-  Vector<ConcatExpr> expr; //empty and not used if hasRHS
+  Vector<ConcatExpr> expr; //empty and not used if isUnion
   
-  boolean hasRHS;
-  BranchExpr lhs, rhs;
+  boolean isUnion;
+  //The text must match ANY ONE OF THESE (only used if isUnion)
+  //An alternative may be null if it is empty
+  Vector<BranchExpr> alts;
     
   /**
    * Constructor
    * @param b   is this a junction or a leaf node in the syntax tree?
    */
   public BranchExpr(boolean b) {
-    this.hasRHS = b;
+    this.isUnion = b;
     this.expr = new Vector<ConcatExpr>();
+    this.alts = new Vector<BranchExpr>();
   }
   
   /**
-   * Constructor
-   * @param b   is this a junction or a leaf node in the syntax tree?
-   * @param l   the left-hand side BranchExpr in the definition
-   * @param r   the right-hand side BranchExpr in the definition
+   * Add a ConcatExpr (only used for when isUnion is false)
+   * @param ce  the ConcatExpr to be added
    */
-  public BranchExpr(boolean b, BranchExpr l, BranchExpr r) {
-    this.hasRHS = b;
-    this.lhs = l;
-    this.rhs = r;
+  public void add(ConcatExpr ce) {
+    this.expr.add(ce);
   }
   
   /**
-   * Add a ConcatExpr (only used for when hasRHS is false)
-   * @param ce  the ConcatExpr to be added
+   * Add an alternative (only used for when isUnion is true)
+   * @param be  the BranchExpr to be added
    */
-  public void add(ConcatExpr ce) {
-    this.expr.add(ce);
+  public void addAlt(BranchExpr be) {
+    this.alts.add(be);
   }
   
 }
@@ -0,0 +1,350 @@
+/**
+ * Earley chart parser over a compiled Grammar.
+ *
+ * Unlike the recursive descent matcher in BackusNaur, the chart parser
+ * handles directly and indirectly recursive definitions (both left and
+ * right recursion) in O(n^3) worst-case time for n input tokens.
+ * Empty (nullable) definitions are handled with the Aycock-Horspool fix.
+ * A repeated { } group goes on after each iteration by restarting its body
+ * with the origin of the group's match, without any recursion.
+ *
+ * On request, the Earley sets of a successful parse are turned into a
+ * ParseForest holding every parse, from the root down, visiting only the
+ * items that are part of some parse.
+ *
+ * To scan for a symbol anywhere in a text, the symbol is instead started
+ * afresh at every token that can begin it. Earley sets are then only made
+ * once they get an item, and let go of once no later item can refer back
+ * to them, so a long text only ever holds the sets of the spans still open.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+class ChartParser {
+
+  //estimated bytes per Earley item: its position and origin, and its entry in the seen set
+  private static final int ITEM_BYTES = 64;
+
+  private final Grammar g;
+
+  //each (alternative, dot) pair is numbered as a position: itemStart[a] + a + dot
+  private int[] posAlt;
+
+  /**
+   * Constructor
+   * @param g   the compiled grammar to parse with
+   */
+  public ChartParser(Grammar g) {
+    this.g = g;
+    posAlt = new int[g.items.length + g.altCount()];
+    for (int a = 0; a < g.altCount(); a++)
+      for (int p = base(a); p <= base(a) + length(a); p++)
+        posAlt[p] = a;
+  }
+
+  private int base(int a) {
+    return g.itemStart[a] + a;
+  }
+
+  private int length(int a) {
+    return g.itemStart[a + 1] - g.itemStart[a];
+  }
+
+  /**
+   * One Earley set: the items (position, origin) reached at a token index
+   */
+  private static class ItemSet {
+    IntList pos = new IntList(), origin = new IntList();
+    HashSet<Long> seen = new HashSet<Long>();
+    HashMap<Integer, IntList> waiting = new HashMap<Integer, IntList>();
+    //when scanning, the earliest set that the first `backed` items may still
+    //need, through their origins and the origins of the items there
+    int back = Integer.MAX_VALUE, backed;
+    //the dictionary symbols that matched up to this set, and where they began,
+    //only kept when a forest is to be built
+    IntList lexiconSym = new IntList(), lexiconOrigin = new IntList();
+
+    void add(int p, int o) {
+      if (seen.add(((long)p << 32) | o)) {
+        pos.add(p);
+        origin.add(o);
+      }
+    }
+  }
+
+  /**
+   * Parses the tokens as a symbol, recording every completed symbol into result
+   * @param start     id of the symbol to be matched
+   * @param lits      literal id of each token, or -1 if no definition uses it
+   * @param result    in which every recognized sub-match is recorded
+   * @param budget    the limits of the parse, in which a step is one item processed
+   * @param progress  to which progress is published, or null
+   * @param forest    whether to build the forest of every parse into result
+   *                  if the tokens match
+   * @return          1 if the tokens match start, 0 if not, -1 if the parse
+   *                  ran out of budget or was cancelled
+   */
+  public int parse(int start, int[] lits, MatchResult result, MatchBudget budget,
+                   MatchProgress progress, boolean forest) {
+    return run(start, lits, null, result, budget, progress, forest);
+  }
+
+  /**
+   * Finds every span of the tokens that a symbol matches, recording only
+   * the spans of that symbol into result
+   * @param start     id of the symbol to be found
+   * @param lits      literal id of each token, or -1 if no definition uses it
+   * @param first     for each literal id, whether a match may begin with it
+   * @param result    in which every span of start is recorded
+   * @param budget    the limits of the scan, in which a step is one item processed
+   * @param progress  to which progress is published, or null
+   * @return          0 once the scan is complete, or -1 if it ran out of
+   *                  budget or was cancelled
+   */
+  public int scan(int start, int[] lits, boolean[] first, MatchResult result,
+                  MatchBudget budget, MatchProgress progress) {
+    return run(start, lits, first, result, budget, progress, false);
+  }
+
+  /**
+   * Parses the tokens as a symbol from the first token, or from every token
+   * whose literal is in scanFirst if it is not null
+   */
+  private int run(int start, int[] lits, boolean[] scanFirst, MatchResult result,
+                  MatchBudget budget, MatchProgress progress, boolean forest) {
+    long startTime = System.nanoTime(), steps = 0, nextCheck = budget.nextCheck(0);
+    long released = 0; //items in the sets let go of
+    int n = lits.length, reach = 0, kept = 0; //the last set made, and the first set kept
+    IntList lexiconEnds = new IntList();
+    ItemSet[] sets = new ItemSet[n + 1];
+    int[] back = scanFirst == null ? null : new int[n + 1]; //of each set processed
+    if (scanFirst == null)
+      for (int a = g.altStart[start]; a < g.altStart[start + 1]; a++)
+        set(sets, 0).add(base(a), 0);
+
+    for (int i = 0; i <= n; i++) {
+      if (scanFirst != null && i < n && lits[i] >= 0 && scanFirst[lits[i]]) {
+        //start afresh here, with the alternatives that can begin with token i
+        ItemSet seed = set(sets, i);
+        int slot = g.dispatch(start, lits[i]);
+        if (slot >= 0)
+          for (int j = g.slotStart[slot]; j < g.slotEnd[slot]; j++)
+            seed.add(base(g.firstAlts[j]), i);
+        for (int j = g.otherStart[start]; j < g.otherStart[start + 1]; j++)
+          seed.add(base(g.otherAlts[j]), i);
+      }
+      ItemSet set = sets[i];
+      if (set == null) continue;
+      reach = Math.max(reach, i);
+      for (int k = 0; k < set.pos.size; k++) {
+        if (++steps >= nextCheck) {
+          MatchResult.Stop stop = budget.check(steps, startTime, i, result,
+                                               ITEM_BYTES * (steps - released), progress);
+          if (stop != null) return finish(result, -1, stop, steps, startTime);
+          nextCheck = budget.nextCheck(steps);
+        }
+        int p = set.pos.a[k], o = set.origin.a[k];
+        int a = posAlt[p], dot = p - base(a);
+        if (dot == length(a)) { //completion
+          int sym = g.altSymbol[a];
+          if (o < i && sym < g.declared && (scanFirst == null || sym == start)) result.add(sym, o, i);
+          //a repeated group may go on with another iteration of its body
+          if (o < i && g.repeats[sym]) set.add(base(a), o);
+          IntList w = sets[o].waiting.get(sym);
+          if (w == null) continue;
+          for (int j = 0; j < w.size; j++) {
+            int wk = w.a[j];
+            set.add(sets[o].pos.a[wk] + 1, sets[o].origin.a[wk]);
+          }
+          continue;
+        }
+        int next = g.items[g.itemStart[a] + dot];
+        if (next < 0) { //scan
+          if (i < n && lits[i] == ~next) {
+            set(sets, i + 1).add(p + 1, o);
+            reach = Math.max(reach, i + 1);
+          }
+          continue;
+        }
+        if (g.lexicon.contains(next)) { //scan every dictionary entry at once
+          lexiconEnds.clear();
+          g.lexicon.ends(next, lits, i, lexiconEnds);
+          for (int j = 0; j < lexiconEnds.size; j++) {
+            ItemSet end = set(sets, lexiconEnds.a[j]);
+            end.add(p + 1, o);
+            reach = Math.max(reach, lexiconEnds.a[j]);
+            if (scanFirst == null || next == start) result.add(next, i, lexiconEnds.a[j]);
+            if (forest) {
+              end.lexiconSym.add(next);
+              end.lexiconOrigin.add(i);
+            }
+          }
+          continue;
+        }
+        //prediction
+        IntList w = set.waiting.get(next);
+        if (w == null) {
+          w = new IntList();
+          set.waiting.put(next, w);
+        }
+        w.add(k);
+        //alternatives whose FIRST set lacks token i would never complete
+        int slot = i < n && lits[i] >= 0 ? g.dispatch(next, lits[i]) : -1;
+        if (slot >= 0)
+          for (int j = g.slotStart[slot]; j < g.slotEnd[slot]; j++)
+            set.add(base(g.firstAlts[j]), i);
+        for (int j = g.otherStart[next]; j < g.otherStart[next + 1]; j++)
+          set.add(base(g.otherAlts[j]), i);
+        if (g.lookahead.nullable(next)) set.add(p + 1, o);
+      }
+      if (scanFirst == null) continue;
+      //let go of the sets that no item still to be processed can complete
+      //back into, directly or through the sets it completes into
+      back[i] = i;
+      for (int k = 0; k < set.pos.size; k++)
+        back[i] = Math.min(back[i], back[set.origin.a[k]]);
+      int low = i + 1;
+      for (int j = i + 1; j <= reach; j++) {
+        ItemSet later = sets[j];
+        if (later == null) continue;
+        for (; later.backed < later.pos.size; later.backed++)
+          later.back = Math.min(later.back, back[later.origin.a[later.backed]]);
+        low = Math.min(low, later.back);
+      }
+      for (; kept < low; kept++) {
+        if (sets[kept] != null) released += sets[kept].pos.size;
+        sets[kept] = null;
+      }
+    }
+    if (scanFirst != null) return finish(result, 0, null, steps, startTime);
+
+    for (int k = 0; sets[n] != null && k < sets[n].pos.size; k++) {
+      int p = sets[n].pos.a[k], a = posAlt[p];
+      if (g.altSymbol[a] == start && sets[n].origin.a[k] == 0 &&
+          p - base(a) == length(a)) {
+        if (forest) result.forest = buildForest(start, lits, sets, result);
+        return finish(result, 1, null, steps, startTime);
+      }
+    }
+    return finish(result, 0, null, steps, startTime);
+  }
+
+  /**
+   * @return  the set at token index i, made if there is none yet
+   */
+  private static ItemSet set(ItemSet[] sets, int i) {
+    if (sets[i] == null) sets[i] = new ItemSet();
+    return sets[i];
+  }
+
+  private static boolean has(ItemSet set, int p, int o) {
+    return set != null && set.seen.contains(((long)p << 32) | o);
+  }
+
+  /**
+   * Builds the forest of every parse of a successful parse. Each node is
+   * expanded once, in the order nodes are created, into the ways the items
+   * of the Earley sets split its span.
+   * @param start   id of the symbol matched
+   * @param sets    the Earley sets of the parse
+   * @param result  the result of the parse, for its tokens
+   */
+  private ParseForest buildForest(int start, int[] lits, ItemSet[] sets, MatchResult result) {
+    ParseForest f = new ParseForest(g, result);
+    ArrayList<HashMap<Integer, IntList>> origins = completions(sets);
+    f.node(start, 0, lits.length);
+    for (int v = 0; v < f.size(); v = f.next()) {
+      int label = f.labelOf(v), i = f.start(v), j = f.end(v);
+      if (label == ParseForest.TOKEN || (label >= 0 && g.lexicon.contains(label))) continue;
+      if (label >= 0) { //a symbol: each of its alternatives completed over [i, j)
+        if (i == j && g.repeats[label]) f.packed(-1, -1); //no iterations
+        for (int a = g.altStart[label]; a < g.altStart[label + 1]; a++) {
+          int end = base(a) + length(a);
+          if (!has(sets[j], end, i)) continue;
+          f.packed(length(a) == 0 ? -1 : f.node(-2 - end, i, j), -1);
+        }
+        continue;
+      }
+      //the first dot items of an alternative, over [i, j): split it at each
+      //m where the first dot - 1 items reach m and the last item spans [m, j)
+      int p = -2 - label, a = posAlt[p], dot = p - base(a);
+      int x = g.items[g.itemStart[a] + dot - 1];
+      if (x < 0) {
+        if (j - 1 >= i && lits[j - 1] == ~x && has(sets[j - 1], p - 1, i))
+          f.packed(prefix(f, a, dot - 1, i, j - 1), f.node(ParseForest.TOKEN, j - 1, j));
+        continue;
+      }
+      IntList from = origins.get(j).get(x);
+      boolean empty = g.lookahead.nullable(x); //whether [j, j) is still to be tried
+      for (int k = 0; from != null && k < from.size; k++) {
+        int m = from.a[k];
+        if (m == j) empty = false;
+        if (m >= i && has(sets[m], p - 1, i)) f.packed(prefix(f, a, dot - 1, i, m), f.node(x, m, j));
+      }
+      if (empty && has(sets[j], p - 1, i)) f.packed(prefix(f, a, dot - 1, i, j), f.node(x, j, j));
+    }
+    return f;
+  }
+
+  /**
+   * @return  for each token index j, the distinct origins m of each symbol
+   *          that matched tokens [m, j)
+   */
+  private ArrayList<HashMap<Integer, IntList>> completions(ItemSet[] sets) {
+    ArrayList<HashMap<Integer, IntList>> origins = new ArrayList<HashMap<Integer, IntList>>(sets.length);
+    HashSet<Long> seen = new HashSet<Long>();
+    for (int j = 0; j < sets.length; j++) {
+      HashMap<Integer, IntList> ends = new HashMap<Integer, IntList>();
+      origins.add(ends);
+      seen.clear();
+      ItemSet set = sets[j];
+      if (set == null) continue;
+      for (int k = 0; k < set.pos.size + set.lexiconSym.size; k++) {
+        int sym, o;
+        if (k < set.pos.size) {
+          int p = set.pos.a[k], a = posAlt[p];
+          if (p - base(a) != length(a)) continue;
+          sym = g.altSymbol[a];
+          o = set.origin.a[k];
+        } else {
+          sym = set.lexiconSym.a[k - set.pos.size];
+          o = set.lexiconOrigin.a[k - set.pos.size];
+        }
+        if (!seen.add(((long)sym << 32) | o)) continue;
+        IntList list = ends.get(sym);
+        if (list == null) ends.put(sym, list = new IntList());
+        list.add(o);
+      }
+    }
+    return origins;
+  }
+
+  /**
+   * @return  the node for the first dot items of alternative a over [i, m),
+   *          or -1 if there are none and a is not repeated
+   */
+  private int prefix(ParseForest f, int a, int dot, int i, int m) {
+    if (dot > 0) return f.node(-2 - (base(a) + dot), i, m);
+    //the iterations of a repeated group before this one, if any
+    return g.repeats[g.altSymbol[a]] ? f.node(g.altSymbol[a], i, m) : -1;
+  }
+
+  /**
+   * Records the statistics of a parse in its result
+   * @return  outcome, the value to be returned by parse()
+   */
+  private static int finish(MatchResult result, int outcome, MatchResult.Stop stop,
+                            long steps, long startTime) {
+    result.stopped = stop;
+    result.steps = steps;
+    result.elapsed = System.nanoTime() - startTime;
+    result.memory = ITEM_BYTES * steps + result.bytes();
+    return outcome;
+  }
+
+}
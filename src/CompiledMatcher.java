@@ -0,0 +1,527 @@
+/**
+ * CompiledMatcher is the optional compiled tier of the recursive descent
+ * matcher: a JVM class generated for one Grammar, with a static method per
+ * symbol and per alternative, loaded as a hidden class. Each alternative's
+ * method tests its literals as constants and calls MatchContext.match() for
+ * its symbols, and each symbol's method dispatches on the current token with
+ * a lookupswitch over the literals its alternatives can begin with, so the
+ * JIT sees the grammar as code rather than as arrays.
+ *
+ * The generated methods do exactly what MatchContext does for the same
+ * symbol or alternative, and record the same sub-matches. Dictionary symbols,
+ * repeated groups, and symbols or alternatives too large to be compiled into
+ * a method the JIT would accept are left to MatchContext, for which the
+ * matcher returns UNCOMPILED.
+ *
+ * The class is generated without stack map frames (class file version 49),
+ * and without any library, since its methods only branch forward. Hidden
+ * classes need Java 15, so Lookup.defineHiddenClass() is found reflectively,
+ * and on an older JVM there is no compiled tier: compile() returns null and
+ * the grammar is interpreted.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+abstract class CompiledMatcher {
+
+  //returned for a symbol or alternative which has no compiled method
+  static final int UNCOMPILED = Integer.MIN_VALUE;
+
+  /**
+   * Matches the alternatives of a symbol, as MatchContext.matchSymbol() does
+   * once its limits are checked
+   * @return  one more than the index up to where the longest alternative is
+   *          matched, or UNCOMPILED
+   */
+  abstract int matchSymbol(MatchContext c, int sym, int lo, int depth);
+
+  /**
+   * Matches a single alternative, as MatchContext.matchAlt() does
+   * @return  one more than the index up to where alt is matched, or UNCOMPILED
+   */
+  abstract int matchAlt(MatchContext c, int alt, int lo, int depth);
+
+  /*************************** Compilation ***************************/
+
+  //limits which keep each method below the size the JIT will compile
+  //(8000 bytes) and the class below the size of its constant pool
+  private static final int MAX_CALLS = 300; //alternatives tried by a symbol's method
+  private static final int MAX_ITEMS = 100; //items of an alternative's method
+  private static final int MAX_CONSTANTS = 50000;
+  private static final int CHUNK = 256; //ids per method of the top-level switches
+
+  private static final String NAME = "CompiledGrammar", SUPER = "CompiledMatcher";
+  private static final String CONTEXT = "LMatchContext;";
+  private static final String STATIC = "(" + CONTEXT + "[III)I"; //(c, lits, lo, depth)
+  private static final String SWITCH = "(" + CONTEXT + "III)I";  //(c, id, lo, depth)
+
+  //Lookup.defineHiddenClass(byte[], boolean, ClassOption...), and an empty
+  //array of options, or null before Java 15
+  private static final java.lang.reflect.Method DEFINE;
+  private static final Object NO_OPTIONS;
+  static {
+    java.lang.reflect.Method define = null;
+    Object options = null;
+    try {
+      Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+      options = Array.newInstance(option, 0);
+      define = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                                                    byte[].class, boolean.class, options.getClass());
+    } catch (Exception e) {
+      define = null; //no hidden classes, and so no compiled tier
+    }
+    DEFINE = define;
+    NO_OPTIONS = options;
+  }
+
+  /**
+   * Generates and loads the matcher of a grammar
+   * @param g   the grammar to compile
+   * @return    a matcher, which may be shared by any number of MatchContexts,
+   *            or null if this JVM cannot load hidden classes
+   * @throws Exception  if the class could not be generated or loaded
+   */
+  static CompiledMatcher compile(Grammar g) throws Exception {
+    if (DEFINE == null) return null;
+    byte[] bytes = new Generator(g).generate();
+    Class<?> c;
+    try {
+      c = ((MethodHandles.Lookup)DEFINE.invoke(MethodHandles.lookup(), bytes, true, NO_OPTIONS)).lookupClass();
+    } catch (InvocationTargetException e) {
+      throw new Exception("Error: the compiled grammar could not be loaded: " + e.getCause());
+    }
+    return (CompiledMatcher)c.getDeclaredConstructor().newInstance();
+  }
+
+  /**
+   * Generates the class of one grammar: its static methods first, then the
+   * switches from symbol and alternative ids to them
+   */
+  private static class Generator {
+    final Grammar g;
+    final Pool pool = new Pool();
+    final ArrayList<Method> methods = new ArrayList<Method>();
+    final boolean[] altCompiled, symCompiled;
+
+    Generator(Grammar g) {
+      this.g = g;
+      altCompiled = new boolean[g.altCount()];
+      symCompiled = new boolean[g.symbols.length];
+    }
+
+    byte[] generate() {
+      //the alternatives of a symbol too wide to compile are left to the
+      //interpreter too, since each would be tried too rarely to be hot
+      for (int s = 0; s < g.symbols.length && pool.size < MAX_CONSTANTS; s++) {
+        if (g.lexicon.contains(s)) continue;
+        int[] keys = g.repeats[s] ? null : keys(s);
+        if (keys == null && !g.repeats[s]) continue;
+        for (int a = g.altStart[s]; a < g.altStart[s + 1]; a++) {
+          if (g.itemStart[a + 1] - g.itemStart[a] > MAX_ITEMS) continue;
+          methods.add(alternative(a));
+          altCompiled[a] = true;
+        }
+        if (keys != null) {
+          methods.add(symbol(s, keys));
+          symCompiled[s] = true;
+        }
+      }
+      methods.add(dispatch("matchSymbol", "symbols", symCompiled, "s"));
+      methods.add(dispatch("matchAlt", "alts", altCompiled, "a"));
+      Code init = new Code();
+      init.op(ALOAD_0);
+      init.op(INVOKESPECIAL).u2(pool.method(SUPER, "<init>", "()V"));
+      init.op(RETURN);
+      methods.add(new Method(0, "<init>", "()V", init, 1));
+      return write();
+    }
+
+    /**
+     * The method of alternative a, over (c, lits, lo, depth) with locals id and prev
+     */
+    Method alternative(int a) {
+      Code c = new Code();
+      c.op(ILOAD_2).op(ISTORE).u1(4);
+      int match = pool.method("MatchContext", "match", "(III)I");
+      int add = pool.method("MatchResult", "add", "(III)V");
+      int result = pool.field("MatchContext", "result", "LMatchResult;");
+      for (int i = g.itemStart[a]; i < g.itemStart[a + 1]; i++) {
+        //if (id >= lits.length) return -1, or id if the remaining items may be empty
+        c.op(ILOAD).u1(4).op(ALOAD_1).op(ARRAYLENGTH);
+        int ok = c.jump(IF_ICMPLT);
+        if (g.emptyFrom(a, i)) c.op(ILOAD).u1(4);
+        else c.op(ICONST_M1);
+        c.op(IRETURN);
+        c.land(ok);
+        int item = g.items[i];
+        if (item < 0) { //if (lits[id] != literal) return -1; id++
+          c.op(ALOAD_1).op(ILOAD).u1(4).op(IALOAD);
+          c.push(pool, ~item);
+          ok = c.jump(IF_ICMPEQ);
+          c.op(ICONST_M1).op(IRETURN);
+          c.land(ok);
+          c.op(IINC).u1(4).u1(1);
+          continue;
+        }
+        //prev = id; id = c.match(item, id, depth + 1); if (id < 0) return id
+        c.op(ILOAD).u1(4).op(ISTORE).u1(5);
+        c.op(ALOAD_0).push(pool, item).op(ILOAD).u1(4).op(ILOAD_3).op(ICONST_1).op(IADD);
+        c.op(INVOKEVIRTUAL).u2(match).op(ISTORE).u1(4);
+        c.op(ILOAD).u1(4);
+        ok = c.jump(IFGE);
+        c.op(ILOAD).u1(4).op(IRETURN);
+        c.land(ok);
+        if (item < g.declared) { //c.result.add(item, prev, id)
+          c.op(ALOAD_0).op(GETFIELD).u2(result);
+          c.push(pool, item).op(ILOAD).u1(5).op(ILOAD).u1(4).op(INVOKEVIRTUAL).u2(add);
+        }
+        //if (id >= lits.length) return id
+        c.op(ILOAD).u1(4).op(ALOAD_1).op(ARRAYLENGTH);
+        ok = c.jump(IF_ICMPLT);
+        c.op(ILOAD).u1(4).op(IRETURN);
+        c.land(ok);
+      }
+      c.op(ILOAD).u1(4).op(IRETURN);
+      return new Method(ACC_STATIC, "a" + a, STATIC, c, 6);
+    }
+
+    /**
+     * @return  the sorted literals under which some alternative of s is
+     *          indexed for first-token dispatch, or null if s has an
+     *          alternative too long or too many alternatives to compile
+     */
+    int[] keys(int s) {
+      int[] keys = new int[8];
+      int n = 0, calls = g.otherStart[s + 1] - g.otherStart[s];
+      for (int a = g.altStart[s]; a < g.altStart[s + 1]; a++) {
+        if (g.itemStart[a + 1] - g.itemStart[a] > MAX_ITEMS) return null;
+        if (g.itemStart[a] == g.itemStart[a + 1]) continue;
+        int item = g.items[g.itemStart[a]];
+        int lo = item < 0 ? 0 : g.lookahead.firstStart[item], hi = item < 0 ? 1 : g.lookahead.firstStart[item + 1];
+        for (int k = lo; k < hi; k++) {
+          if (n == keys.length) keys = Arrays.copyOf(keys, 2 * n);
+          keys[n++] = item < 0 ? ~item : g.lookahead.first[k];
+        }
+      }
+      Arrays.sort(keys, 0, n);
+      int distinct = 0;
+      for (int i = 0; i < n; i++) {
+        if (i > 0 && keys[i] == keys[i - 1]) continue;
+        int slot = g.dispatch(s, keys[i]);
+        if (slot < 0) continue;
+        keys[distinct++] = keys[i];
+        calls += g.slotEnd[slot] - g.slotStart[slot];
+      }
+      return calls > MAX_CALLS ? null : Arrays.copyOf(keys, distinct);
+    }
+
+    /**
+     * The method of symbol s, over (c, lits, lo, depth) with local best
+     * @param keys  the literals returned by keys(s)
+     */
+    Method symbol(int s, int[] keys) {
+      Code c = new Code();
+      c.op(ICONST_M1).op(ISTORE).u1(4);
+      if (keys.length > 0) { //switch (lits[lo]) over the literals with alternatives
+        c.op(ALOAD_1).op(ILOAD_2).op(IALOAD);
+        int sw = c.lookupSwitch(keys);
+        int[] ends = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+          c.caseAt(sw, i);
+          int slot = g.dispatch(s, keys[i]);
+          for (int j = g.slotStart[slot]; j < g.slotEnd[slot]; j++) call(c, g.firstAlts[j]);
+          ends[i] = c.jump(GOTO);
+        }
+        c.defaultAt(sw);
+        for (int end : ends) c.land(end);
+      }
+      for (int j = g.otherStart[s]; j < g.otherStart[s + 1]; j++) call(c, g.otherAlts[j]);
+      c.op(ILOAD).u1(4).op(IRETURN);
+      return new Method(ACC_STATIC, "s" + s, STATIC, c, 5);
+    }
+
+    /**
+     * best = Math.max(best, a(c, lits, lo, depth + 1))
+     */
+    void call(Code c, int a) {
+      c.op(ILOAD).u1(4).op(ALOAD_0).op(ALOAD_1).op(ILOAD_2).op(ILOAD_3).op(ICONST_1).op(IADD);
+      c.op(INVOKESTATIC).u2(pool.method(NAME, "a" + a, STATIC));
+      c.op(INVOKESTATIC).u2(pool.method("java/lang/Math", "max", "(II)I"));
+      c.op(ISTORE).u1(4);
+    }
+
+    /**
+     * Generates the instance method name(c, id, lo, depth), which switches on
+     * id / CHUNK to a static method chunk<k>, which in turn switches on id to
+     * the method prefix<id>(c, c.lits, lo, depth), or returns UNCOMPILED
+     */
+    Method dispatch(String name, String chunk, boolean[] compiled, String prefix) {
+      int chunks = (compiled.length + CHUNK - 1) / CHUNK;
+      boolean[] any = new boolean[chunks];
+      int lits = pool.field("MatchContext", "lits", "[I");
+      for (int k = 0; k < chunks; k++) {
+        int lo = k * CHUNK, hi = Math.min(compiled.length, lo + CHUNK) - 1;
+        for (int i = lo; i <= hi; i++) any[k] |= compiled[i];
+        if (!any[k]) continue;
+        Code c = new Code();
+        c.op(ILOAD_1);
+        int sw = c.tableSwitch(lo, hi);
+        for (int i = lo; i <= hi; i++) {
+          if (!compiled[i]) continue;
+          c.caseAt(sw, i - lo);
+          c.op(ALOAD_0).op(ALOAD_0).op(GETFIELD).u2(lits).op(ILOAD_2).op(ILOAD_3);
+          c.op(INVOKESTATIC).u2(pool.method(NAME, prefix + i, STATIC)).op(IRETURN);
+        }
+        c.defaultAt(sw);
+        c.push(pool, UNCOMPILED).op(IRETURN);
+        methods.add(new Method(ACC_STATIC, chunk + k, SWITCH, c, 4));
+      }
+      Code c = new Code();
+      if (chunks > 0) {
+        c.op(ILOAD_2).push(pool, Integer.numberOfTrailingZeros(CHUNK)).op(IUSHR);
+        int sw = c.tableSwitch(0, chunks - 1);
+        for (int k = 0; k < chunks; k++) {
+          if (!any[k]) continue;
+          c.caseAt(sw, k);
+          c.op(ALOAD_1).op(ILOAD_2).op(ILOAD_3).op(ILOAD).u1(4);
+          c.op(INVOKESTATIC).u2(pool.method(NAME, chunk + k, SWITCH)).op(IRETURN);
+        }
+        c.defaultAt(sw);
+      }
+      c.push(pool, UNCOMPILED).op(IRETURN);
+      return new Method(0, name, SWITCH, c, 5);
+    }
+
+    /**
+     * @return  the class file
+     */
+    byte[] write() {
+      int thisClass = pool.classRef(NAME), superClass = pool.classRef(SUPER);
+      int code = pool.utf8("Code");
+      for (Method m : methods) {
+        m.nameIndex = pool.utf8(m.name);
+        m.descIndex = pool.utf8(m.desc);
+      }
+      if (pool.size > 0xFFFF) throw new IllegalStateException("The grammar is too large to compile.");
+      Code out = new Code();
+      out.u4(0xCAFEBABE).u2(0).u2(49);
+      out.u2(pool.size);
+      out.bytes(pool.out.toByteArray());
+      out.u2(ACC_FINAL | ACC_SUPER).u2(thisClass).u2(superClass);
+      out.u2(0).u2(0); //no interfaces or fields
+      out.u2(methods.size());
+      for (Method m : methods) {
+        byte[] body = m.code.toByteArray();
+        out.u2(m.access).u2(m.nameIndex).u2(m.descIndex).u2(1);
+        out.u2(code).u4(12 + body.length);
+        out.u2(MAX_STACK).u2(m.maxLocals).u4(body.length).bytes(body);
+        out.u2(0).u2(0); //no exception table or attributes
+      }
+      out.u2(0); //no class attributes
+      return out.toByteArray();
+    }
+  }
+
+  private static final int MAX_STACK = 8;
+  private static final int ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+  private static class Method {
+    final int access, maxLocals;
+    final String name, desc;
+    final Code code;
+    int nameIndex, descIndex;
+
+    Method(int access, String name, String desc, Code code, int maxLocals) {
+      this.access = access;
+      this.name = name;
+      this.desc = desc;
+      this.code = code;
+      this.maxLocals = maxLocals;
+    }
+  }
+
+  /**
+   * The constant pool of the class, each constant added once
+   */
+  private static class Pool {
+    final Code out = new Code();
+    final HashMap<String, Integer> index = new HashMap<String, Integer>();
+    int size = 1; //entries are numbered from 1
+
+    private int add(String key, int tag, int a, int b, boolean wide) {
+      Integer i = index.get(key);
+      if (i != null) return i;
+      out.u1(tag);
+      if (wide) out.u4(a);
+      else out.u2(a);
+      if (b >= 0) out.u2(b);
+      index.put(key, size);
+      return size++;
+    }
+
+    int utf8(String s) {
+      Integer i = index.get("U" + s);
+      if (i != null) return i;
+      out.u1(1).u2(s.length());
+      for (int k = 0; k < s.length(); k++) out.u1(s.charAt(k)); //names are ASCII
+      index.put("U" + s, size);
+      return size++;
+    }
+
+    int integer(int v) {
+      return add("I" + v, 3, v, -1, true);
+    }
+
+    int classRef(String name) {
+      return add("C" + name, 7, utf8(name), -1, false);
+    }
+
+    private int nameAndType(String name, String desc) {
+      return add("N" + name + " " + desc, 12, utf8(name), utf8(desc), false);
+    }
+
+    int method(String owner, String name, String desc) {
+      return add("M" + owner + "." + name + desc, 10, classRef(owner), nameAndType(name, desc), false);
+    }
+
+    int field(String owner, String name, String desc) {
+      return add("F" + owner + "." + name + desc, 9, classRef(owner), nameAndType(name, desc), false);
+    }
+  }
+
+  private static final int ICONST_M1 = 0x02, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11,
+      LDC_W = 0x13, ILOAD = 0x15, ILOAD_1 = 0x1b, ILOAD_2 = 0x1c, ILOAD_3 = 0x1d,
+      ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, IALOAD = 0x2e, ISTORE = 0x36, IADD = 0x60,
+      IUSHR = 0x7c, IINC = 0x84, IFGE = 0x9c, IF_ICMPEQ = 0x9f, IF_ICMPLT = 0xa1,
+      GOTO = 0xa7, TABLESWITCH = 0xaa, LOOKUPSWITCH = 0xab, IRETURN = 0xac, RETURN = 0xb1,
+      GETFIELD = 0xb4, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8,
+      ARRAYLENGTH = 0xbe;
+
+  /**
+   * A growable byte buffer of big-endian values, with forward jumps and
+   * switches whose targets are filled in once they are reached
+   */
+  private static class Code extends ByteArrayOutputStream {
+
+    Code u1(int v) {
+      write(v);
+      return this;
+    }
+
+    Code u2(int v) {
+      return u1(v >>> 8).u1(v);
+    }
+
+    Code u4(int v) {
+      return u2(v >>> 16).u2(v);
+    }
+
+    Code bytes(byte[] b) {
+      write(b, 0, b.length);
+      return this;
+    }
+
+    Code op(int opcode) {
+      return u1(opcode);
+    }
+
+    /**
+     * Pushes an int constant
+     */
+    Code push(Pool pool, int v) {
+      if (v >= -1 && v <= 5) return op(ICONST_M1 + 1 + v);
+      if (v == (byte)v) return op(BIPUSH).u1(v);
+      if (v == (short)v) return op(SIPUSH).u2(v);
+      return op(LDC_W).u2(pool.integer(v));
+    }
+
+    private void set4(int at, int v) {
+      buf[at] = (byte)(v >>> 24);
+      buf[at + 1] = (byte)(v >>> 16);
+      buf[at + 2] = (byte)(v >>> 8);
+      buf[at + 3] = (byte)v;
+    }
+
+    /**
+     * Emits a forward branch
+     * @return  the offset of the branch, to be passed to land()
+     */
+    int jump(int opcode) {
+      int at = count;
+      op(opcode).u2(0);
+      return at;
+    }
+
+    /**
+     * Points a forward branch at the current offset
+     */
+    void land(int at) {
+      int d = count - at;
+      buf[at + 1] = (byte)(d >>> 8);
+      buf[at + 2] = (byte)d;
+    }
+
+    /**
+     * Emits a switch whose targets are all unset
+     * @return  the offset of the switch, to be passed to caseAt() and defaultAt()
+     */
+    private int switchOf(int opcode) {
+      int at = count;
+      op(opcode);
+      while (count % 4 != 0) u1(0);
+      u4(0); //default
+      return at;
+    }
+
+    int tableSwitch(int lo, int hi) {
+      int at = switchOf(TABLESWITCH);
+      u4(lo).u4(hi);
+      for (int i = lo; i <= hi; i++) u4(0);
+      return at;
+    }
+
+    int lookupSwitch(int[] sortedKeys) {
+      int at = switchOf(LOOKUPSWITCH);
+      u4(sortedKeys.length);
+      for (int k : sortedKeys) u4(k).u4(0);
+      return at;
+    }
+
+    private int operands(int at) {
+      return (at + 4) & ~3;
+    }
+
+    /**
+     * Points the i-th case of a switch at the current offset
+     */
+    void caseAt(int at, int i) {
+      boolean table = (buf[at] & 0xFF) == TABLESWITCH;
+      set4(operands(at) + (table ? 12 + 4 * i : 12 + 8 * i), count - at);
+    }
+
+    /**
+     * Points the default of a switch, and each unset case, at the current offset
+     */
+    void defaultAt(int at) {
+      int p = operands(at);
+      set4(p, count - at);
+      if ((buf[at] & 0xFF) != TABLESWITCH) return;
+      for (int q = p + 12; q < p + 12 + 4 * (readInt(p + 8) - readInt(p + 4) + 1); q += 4)
+        if (readInt(q) == 0) set4(q, count - at);
+    }
+
+    private int readInt(int at) {
+      return (buf[at] & 0xFF) << 24 | (buf[at + 1] & 0xFF) << 16 | (buf[at + 2] & 0xFF) << 8 | (buf[at + 3] & 0xFF);
+    }
+  }
+
+}
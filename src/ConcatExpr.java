@@ -24,7 +24,7 @@ class ConcatExpr {
   }
   
   Vector<Item> items;
-  char quantifier; //For later releases
+  char quantifier; //'*', '+' or '?' if this is a { } group, or 0
   
   /**
    * Constructor
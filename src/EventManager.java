@@ -17,19 +17,27 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
 import java.net.URI;
-import java.util.HashMap;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.border.BevelBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 public class EventManager implements ActionListener {
   
@@ -46,9 +54,13 @@ public class EventManager implements ActionListener {
   
   JLabel step2, promptTexts, step3;
   JComboBox<String> optionsTexts, optionsSymbols;
-  JButton analyzeButton, resetButton;
+  JButton analyzeButton, cancelButton, resetButton;
   
   JTextArea editorText; //to contain the input text to be parsed
+  //a text file too large for the editor, matched instead of editorText while set
+  static final int EDITOR_LIMIT = 1 << 20; //characters of a file loaded into the editor
+  static final String OPEN_FILE = "Open file...";
+  MappedText inputFile;
   JScrollPane scrollPaneText; //to contain the text editor
   
   //for the status bar at the bottom
@@ -59,6 +71,29 @@ public class EventManager implements ActionListener {
   HelpFrame helpFrame;
   ResultFrame resultFrame;
   
+  //The definitions are checked in the background as they are typed: each
+  //edit restarts checkTimer, which hands the text to the checker thread
+  static final int CHECK_DELAY = 400; //milliseconds without edits before checking
+  Timer checkTimer;
+  ExecutorService checker;
+  volatile int checkGeneration; //incremented for every check, so stale ones are dropped
+  BackusNaur checkBase; //last valid grammar, updated incrementally by the checker thread
+  BackusNaur checked; //last valid grammar, and the text it was built from, on the EDT
+  String checkedText;
+  String dictName, dictText; //the selected dictionary, read when it is chosen, or null
+  
+  //Analysis runs on a worker thread, while progressTimer shows its progress
+  static final int PROGRESS_INTERVAL = 100; //milliseconds between status updates
+  Timer progressTimer;
+  SwingWorker<ResultModel, Void> analysis; //the analysis in progress, or null
+  MatchProgress progress;
+  
+  //While the results are shown, editing the text analyzes it again once
+  //LIVE_DELAY passes without edits, continuing from the last analysis
+  static final int LIVE_DELAY = 100; //milliseconds without edits before analyzing
+  Timer liveTimer;
+  IncrementalMatch incremental; //of the last analysis of the editor's text, or null
+  
   /**
    * Constructor
    */
@@ -114,6 +149,7 @@ public class EventManager implements ActionListener {
 
     optionsDicts = new JComboBox<String>(); //for selecting dictionaries
     optionsDicts.setFont(Main.monospaceFont.deriveFont(13.0f));
+    optionsDicts.addActionListener(this);
     
     lockButton = new JButton("Lock and Load");
     lockButton.setFont(Main.normalFont.deriveFont(Font.BOLD, 13.0f));
@@ -147,6 +183,11 @@ public class EventManager implements ActionListener {
     analyzeButton.setActionCommand("Analyze");
     analyzeButton.addActionListener(this);
     
+    cancelButton = new JButton("Cancel");
+    cancelButton.setFont(Main.normalFont.deriveFont(Font.BOLD, 13.0f));
+    cancelButton.setActionCommand("Cancel");
+    cancelButton.addActionListener(this);
+    
     resetButton = new JButton("Reset All");
     resetButton.setFont(Main.normalFont.deriveFont(Font.BOLD, 13.0f));
     resetButton.setActionCommand("Reset");
@@ -170,6 +211,53 @@ public class EventManager implements ActionListener {
     statusLabel.setHorizontalAlignment(SwingConstants.LEFT);
     statusPanel.add(statusLabel);
     
+    checkTimer = new Timer(CHECK_DELAY, new ActionListener() {
+      public void actionPerformed(ActionEvent ae) {
+        check();
+      }
+    });
+    checkTimer.setRepeats(false);
+    progressTimer = new Timer(PROGRESS_INTERVAL, new ActionListener() {
+      public void actionPerformed(ActionEvent ae) {
+        showProgress();
+      }
+    });
+    liveTimer = new Timer(LIVE_DELAY, new ActionListener() {
+      public void actionPerformed(ActionEvent ae) {
+        if (currState != State.results) return;
+        if (progress != null) progress.cancel(); //superseded by this analysis
+        analyze(true);
+      }
+    });
+    liveTimer.setRepeats(false);
+    checker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Definition checker");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    editorText.getDocument().addDocumentListener(new DocumentListener() {
+      public void insertUpdate(DocumentEvent de) {
+        inputFile = null; //typed text is matched from now on
+        scheduleLiveAnalysis();
+      }
+      public void removeUpdate(DocumentEvent de) {
+        inputFile = null;
+        scheduleLiveAnalysis();
+      }
+      public void changedUpdate(DocumentEvent de) {} //attributes only
+    });
+    editorBN.getDocument().addDocumentListener(new DocumentListener() {
+      public void insertUpdate(DocumentEvent de) {
+        scheduleCheck();
+      }
+      public void removeUpdate(DocumentEvent de) {
+        scheduleCheck();
+      }
+      public void changedUpdate(DocumentEvent de) {} //attributes only
+    });
+    
     loadExampleBN();
     loadExampleDicts();
     loadExampleTexts();
@@ -222,6 +310,7 @@ public class EventManager implements ActionListener {
         }
       }
     }
+    optionsTexts.addItem(OPEN_FILE);
   }
   
   enum State { step1, step2, help, results };
@@ -229,25 +318,92 @@ public class EventManager implements ActionListener {
   
   BackusNaur bn; //the Backus-Naur definition
   String symbolToMatch; //symbol to match
-  HashMap<String, TreeSet<String>> res; //map to store results
+  MatchResult res; //spans of the results, rendered only when displayed
+  
+  /************************* Background Checking **************************/
   
   /**
-   * Finds all matched symbols, in the order they occur in the input BNF
-   * @return a string version of res, describing the matching results
+   * Reads the selected dictionary once, when it is chosen, so that checks
+   * need not read it again. A dictionary that could not be read is read
+   * again at the next check.
    */
-  private String resToString() {
-    if (res == null) return "";
-    String resultStr = "";
-    for (String symbol : bn.symbols) {
-      if (res.containsKey(symbol)) {
-        resultStr += "Matches for <" + symbol + ">:\n";
-        TreeSet<String> matches = res.get(symbol);
-        for (String match : matches)
-          resultStr += ">>> " + match + "\n";
-        resultStr += "\n";
-      }
+  private void readDictionary() throws Exception {
+    String dict = optionsDicts.getSelectedItem().toString();
+    if (dict.equals(dictName)) return;
+    dictText = dict.startsWith("None") ? null : BackusNaur.fileToString(new File(exdir + dict));
+    dictName = dict;
+  }
+  
+  /**
+   * @param editor  the definitions in the editor
+   * @param dict    the text of the selected dictionary, or null
+   * @return        the definitions in the editor, followed by the dictionary
+   */
+  private static String definitions(String editor, String dict) {
+    return dict == null ? editor : editor + "\n" + dict;
+  }
+  
+  /**
+   * Checks the definitions once they have not been edited for CHECK_DELAY
+   */
+  private void scheduleCheck() {
+    if (currState == State.step1) checkTimer.restart();
+  }
+  
+  /**
+   * Builds the grammar on the checker thread, updating the last valid one
+   * so that only the edited definitions are parsed, validated and compiled
+   * again. The outcome is shown in the status bar. Only the editor's text
+   * is taken on the EDT; it is joined to the dictionary on the checker thread.
+   */
+  private void check() {
+    try {
+      readDictionary();
+    } catch (Exception e) {
+      statusLabel.setText(e.getMessage());
+      return;
     }
-    return resultStr;
+    final String editor = editorBN.getText(), dict = dictText;
+    final int generation = ++checkGeneration;
+    checker.execute(new Runnable() {
+      public void run() {
+        if (generation != checkGeneration) return; //edited again since
+        final String text = definitions(editor, dict);
+        long time = System.nanoTime();
+        BackusNaur result = null;
+        String error = null;
+        try {
+          result = checkBase == null ? new BackusNaur(text) : checkBase.update(text);
+          checkBase = result;
+        } catch (Exception e) {
+          error = e.getMessage();
+        }
+        time = (System.nanoTime() - time) / 1000000;
+        final BackusNaur bn = result;
+        final String status = bn != null ?
+            "Definitions OK: " + bn.symbols.size() + " symbols, checked in " + time + " ms" :
+            "Error: " + String.valueOf(error).replace('\n', ' ');
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            if (generation != checkGeneration || currState != State.step1) return;
+            if (bn != null) {
+              checked = bn;
+              checkedText = text;
+            }
+            statusLabel.setText(status);
+          }
+        });
+      }
+    });
+  }
+  
+  /**
+   * Analyzes the edited text once it has not been edited for LIVE_DELAY,
+   * if the results of the last analysis are still shown
+   */
+  private void scheduleLiveAnalysis() {
+    if (currState == State.results && resultFrame != null && resultFrame.isDisplayable())
+      liveTimer.restart();
   }
   
   /**************************** Process Actions ****************************/
@@ -267,8 +423,21 @@ public class EventManager implements ActionListener {
       }
       return;
     }
+    if (ae.getSource().equals(optionsDicts)) { //Dictionary option
+      try {
+        readDictionary();
+      } catch (Exception e) {
+        statusLabel.setText(e.getMessage());
+      }
+      scheduleCheck();
+      return;
+    }
     if (ae.getSource().equals(optionsTexts)) { //Text example option
       if (optionsTexts.getSelectedItem().toString().startsWith("None")) return;
+      if (optionsTexts.getSelectedItem().equals(OPEN_FILE)) {
+        openTextFile();
+        return;
+      }
       try { //load example texts
         File f = new File(exdir + optionsTexts.getSelectedItem());
         editorText.setText(BackusNaur.fileToString(f));
@@ -282,15 +451,14 @@ public class EventManager implements ActionListener {
     }
     //Button clicks    
     if (ae.getActionCommand() == "Load") {
+      checkTimer.stop();
+      checkGeneration++; //drop any check in progress
       try {
-        //load dictionary
-        if (optionsDicts.getSelectedItem().toString().startsWith("None")) {
-          bn = new BackusNaur(editorBN.getText());
-        } else {
-          File f = new File(exdir + optionsDicts.getSelectedItem());
-          bn = new BackusNaur(editorBN.getText() + "\n" +
-                              BackusNaur.fileToString(f));
-        }
+        //load dictionary, reusing the grammar checked in the background
+        readDictionary();
+        String text = definitions(editorBN.getText(), dictText);
+        if (checked != null && text.equals(checkedText)) bn = checked;
+        else bn = checked == null ? new BackusNaur(text) : checked.update(text);
       } catch (Exception e) {
         JOptionPane.showMessageDialog(Main.f, e.getMessage(),
                                       "Error parsing Backus-Naur Form!",
@@ -299,37 +467,161 @@ public class EventManager implements ActionListener {
       }
       statusLabel.setText("Successfully loaded Backus-Naur form!");
       currState = State.step2;
+      incremental = null;
       
       //Add possible symbols to select from
       optionsSymbols.removeAllItems();
       for (String s : bn.symbols) optionsSymbols.addItem(s);
 
     } else if (ae.getActionCommand() == "Analyze") {
-      boolean matched = false;
-      try {
-        res = new HashMap<String, TreeSet<String>>();
-        matched = bn.matches(optionsSymbols.getSelectedItem().toString(),
-                             editorText.getText(), res);
-
-      } catch (Exception e) {
-        JOptionPane.showMessageDialog(Main.f, e.getMessage(),
-                                      "Error encountered while matching text",
-                                      JOptionPane.WARNING_MESSAGE);
-        return;
-      }
-      if (resultFrame != null) resultFrame.dispose();
-      resultFrame = new ResultFrame(matched, resToString());
-      currState = State.results;
+      analyze(false);
+      
+    } else if (ae.getActionCommand() == "Cancel") {
+      if (progress != null) progress.cancel();
+      return;
       
     } else if (ae.getActionCommand() == "Reset") {
+      if (progress != null) progress.cancel();
+      analysis = null; //so that its results, if it finishes anyway, are dropped
+      progressTimer.stop();
+      liveTimer.stop();
       currState = State.step1;
       //editorBN.setText("");
       editorText.setText("");
+      inputFile = null;
+      incremental = null;
       optionsSymbols.removeAllItems();
     }
     refresh();
   }
   
+  /**
+   * Opens a text file chosen by the user. A file small enough to be edited is
+   * loaded into the editor; a larger one is matched straight from the file,
+   * memory-mapped, and only described in the editor.
+   */
+  private void openTextFile() {
+    JFileChooser chooser = new JFileChooser(new File("."));
+    if (chooser.showOpenDialog(Main.f) != JFileChooser.APPROVE_OPTION) return;
+    try {
+      MappedText file = new MappedText(chooser.getSelectedFile());
+      if (file.length() <= EDITOR_LIMIT) {
+        editorText.setText(file.toString());
+        editorText.setCaretPosition(editorText.getDocument().getLength());
+        return;
+      }
+      editorText.setText("File " + file.getName() + " (" + file.length() + " characters) will be\n" +
+                         "matched directly, without being loaded into the editor.\n\n" +
+                         "Edit this text to match the typed text instead.");
+      inputFile = file; //after setText(), whose edits drop any previous file
+    } catch (Exception e) {
+      JOptionPane.showMessageDialog(Main.f, e.getMessage(),
+                                    "Error loading text file.",
+                                    JOptionPane.WARNING_MESSAGE);
+    }
+  }
+  
+  /**
+   * Matches the text on a worker thread, so the window stays responsive,
+   * and orders the results there too, to be rendered as they are shown.
+   * Progress is shown in the status bar until the analysis completes or is
+   * cancelled. The editor's text is matched continuing from its last
+   * analysis, so that after an edit only what the edit changed is matched
+   * again.
+   * @param live  whether the text was edited while the results were shown,
+   *              which are then updated in place
+   */
+  private void analyze(final boolean live) {
+    final BackusNaur grammar = bn;
+    final String symbol = optionsSymbols.getSelectedItem().toString();
+    //a file is read by its own copy, as the results of an earlier analysis may still read it
+    final CharSequence text = inputFile != null ? inputFile.copy() : editorText.getText();
+    if (inputFile == null && (incremental == null || !symbol.equals(symbolToMatch))) {
+      try {
+        incremental = new IncrementalMatch(grammar, symbol);
+        symbolToMatch = symbol;
+      } catch (Exception e) {
+        statusLabel.setText(e.getMessage());
+        return;
+      }
+    }
+    final IncrementalMatch matcher = inputFile == null ? incremental : null;
+    final MatchProgress p = progress = new MatchProgress();
+    analysis = new SwingWorker<ResultModel, Void>() {
+      MatchResult result;
+      int reused;
+      
+      @Override
+      protected ResultModel doInBackground() throws Exception {
+        if (matcher == null) {
+          result = grammar.match(symbol, text, p);
+        } else {
+          synchronized (matcher) { //the reuse of this run, not of a later one
+            result = matcher.match(text, grammar.budget, p);
+            reused = matcher.getReusedTokens();
+          }
+        }
+        return new ResultModel(result);
+      }
+      
+      @Override
+      protected void done() {
+        if (analysis != this) return; //superseded by a later analysis, or reset
+        analysis = null;
+        progressTimer.stop();
+        refresh();
+        ResultModel model;
+        try {
+          model = get();
+        } catch (ExecutionException e) {
+          //engine failures such as NullPointerException carry no message
+          String message = e.getCause().getMessage();
+          JOptionPane.showMessageDialog(Main.f, message != null ? message : e.getCause().toString(),
+                                        "Error encountered while matching text",
+                                        JOptionPane.WARNING_MESSAGE);
+          statusLabel.setText("Analysis stopped.");
+          return;
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (result.getStopReason() == MatchResult.Stop.CANCELLED) {
+          if (currState != State.step1) //not reset in the meantime
+            statusLabel.setText("Analysis cancelled after " + p.getElapsedMillis() + " ms.");
+          return;
+        }
+        res = result;
+        String stats = res.getSteps() + " steps in " + res.getElapsedNanos() / 1000000 + " ms. " +
+                       "Memo hits: " + res.getMemoHits() + ", misses: " + res.getMemoMisses();
+        if (reused > 0) stats += ". Tokens reused: " + reused + " of " + res.tokenCount();
+        if (res.isComplete()) {
+          statusLabel.setText((live ? "Analysis updated: " : "Analysis complete: ") + stats);
+        } else {
+          statusLabel.setText("Analysis stopped early: " + stats);
+        }
+        if (live && resultFrame != null && resultFrame.isDisplayable()) {
+          resultFrame.update(model, res.getStopMessage());
+        } else {
+          if (resultFrame != null) resultFrame.dispose();
+          resultFrame = new ResultFrame(model, res.getStopMessage());
+        }
+        currState = State.results;
+      }
+    };
+    showProgress();
+    progressTimer.start();
+    analysis.execute();
+  }
+  
+  /**
+   * Shows the progress of the analysis in the status bar
+   */
+  private void showProgress() {
+    if (progress == null || analysis == null) return;
+    statusLabel.setText("Analyzing: token " + progress.getPosition() + " of " +
+                        progress.getTokens() + ", " + progress.getMatches() +
+                        " partial matches, " + progress.getElapsedMillis() + " ms");
+  }
+  
   private void refresh() {
     if (currState == State.step1) {
       //Enable step 1 components
@@ -345,11 +637,12 @@ public class EventManager implements ActionListener {
       optionsTexts.setEnabled(false);
       optionsSymbols.setEnabled(false);
       analyzeButton.setEnabled(false);
+      cancelButton.setEnabled(false);
       
       //Display status
       statusLabel.setText("Status: Ready");
       
-    } else if (currState == State.step2) {
+    } else if (currState == State.step2 || currState == State.results) {
       //Disable step 1 components
       editorBN.setBackground(Color.lightGray);
       editorBN.setEnabled(false);
@@ -362,7 +655,8 @@ public class EventManager implements ActionListener {
       editorText.setEnabled(true);
       optionsTexts.setEnabled(true);
       optionsSymbols.setEnabled(true);
-      analyzeButton.setEnabled(true);
+      analyzeButton.setEnabled(analysis == null);
+      cancelButton.setEnabled(analysis != null);
     }
   }
 }
@@ -0,0 +1,507 @@
+/**
+ * Grammar is the compiled, immutable form of a set of Backus-Naur definitions.
+ *
+ * Symbols are numbered densely from 0 in the order they were declared, and
+ * literals are stored once each, in lower case. Each alternative of a symbol
+ * is a packed sequence of items in a single int array: an item is a symbol id
+ * if it is non-negative, or the bitwise complement (~) of a literal id.
+ * The alternatives of symbol s are altStart[s] to altStart[s + 1] - 1, and
+ * the items of alternative a are items[itemStart[a]] to items[itemStart[a + 1] - 1].
+ *
+ * Each { } group of the definitions becomes an anonymous symbol, numbered
+ * after the declared ones. {x}? is a symbol of two alternatives, x and the
+ * empty one, {x}* (or {x}) a symbol whose only alternative is x and which the
+ * matchers repeat by iterating, and {x}+ is compiled as x {x}*.
+ *
+ * For first-token dispatch, the alternatives of each symbol are indexed by
+ * (symbol, literal) in an open-addressing hash table, under every literal in
+ * their FIRST set, so only those that can start at the current token are
+ * ever tried. An alternative beginning with a literal is indexed under that
+ * literal, and one beginning with a symbol under the FIRST set of the symbol
+ * (see Lookahead). The rest, which are empty or begin with a symbol that can
+ * match empty or whose FIRST set is too large to store, are listed in
+ * otherAlts. Symbols defined only by literals are additionally compiled into
+ * a Lexicon trie.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+final class Grammar {
+
+  final String[] symbols;  //symbol names, indexed by id
+  final String[] literals; //lower case literal values, indexed by id
+
+  //symbols from declared on are the anonymous groups of { } quantifiers,
+  //which are never recorded as sub-matches
+  final int declared;
+  final boolean[] repeats; //whether a symbol is a group repeated any number of times
+
+  final int[] altStart;    //offsets into itemStart, one per symbol (+1)
+  final int[] altSymbol;   //the symbol that each alternative defines
+  final int[] itemStart;   //offsets into items, one per alternative (+1)
+  final int[] items;       //symbol ids, or ~literal ids
+
+  //alternatives that are tried at any token: otherAlts[otherStart[s]] to
+  //otherAlts[otherStart[s + 1] - 1] for symbol s
+  final int[] otherStart;
+  final int[] otherAlts;
+
+  //hash table from (symbol, literal) to the range of firstAlts that can begin with it
+  private final long[] slotKey;
+  final int[] slotStart, slotEnd;
+  final int[] firstAlts;
+
+  //nullable flags, FIRST and FOLLOW sets of the symbols
+  final Lookahead lookahead;
+  //trie over the symbols defined only by literals
+  final Lexicon lexicon;
+
+  private final HashMap<String, Integer> symbolIds = new HashMap<String, Integer>();
+  private final HashMap<String, Integer> literalIds = new HashMap<String, Integer>();
+  //open-addressing set of literal ids + 1 (0 if empty), by String.hashCode(),
+  //to look up tokens in place in the text
+  private int[] literalTable;
+
+  /**
+   * Compiles validated definitions
+   * @param defs    the definitions, every referenced symbol of which is defined
+   * @param order   the symbols of defs, in the order they were declared
+   */
+  Grammar(Map<String, BranchExpr> defs, List<String> order) {
+    this(null, defs, order, null);
+  }
+
+  /**
+   * Compiles validated definitions, copying the compiled alternatives of every
+   * symbol that is unchanged since an earlier grammar instead of recompiling it.
+   * Literal ids are carried over from the earlier grammar, so copied items
+   * only need their symbol ids renumbered.
+   * @param prev      a grammar compiled from earlier definitions, or null
+   * @param defs      the definitions, every referenced symbol of which is defined
+   * @param order     the symbols of defs, in the order they were declared
+   * @param changed   the symbols whose definitions differ from those of prev
+   */
+  Grammar(Grammar prev, Map<String, BranchExpr> defs, List<String> order, Set<String> changed) {
+    declared = order.size();
+    for (int i = 0; i < declared; i++) symbolIds.put(order.get(i), i);
+
+    ArrayList<String> lits = new ArrayList<String>();
+    //the id of each declared symbol of prev in this grammar, or -1 if it was
+    //removed, and the id in prev of each symbol whose compiled form can be copied
+    int[] newId = null, prevId = new int[declared];
+    Arrays.fill(prevId, -1);
+    if (prev != null) {
+      lits.addAll(Arrays.asList(prev.literals));
+      literalIds.putAll(prev.literalIds);
+      newId = new int[prev.declared];
+      for (int i = 0; i < newId.length; i++) newId[i] = symbolId(prev.symbols[i]);
+      for (int i = 0; i < newId.length; i++)
+        if (newId[i] >= 0 && !changed.contains(prev.symbols[i])) prevId[newId[i]] = i;
+    }
+
+    IntList symbolStarts = new IntList(), starts = new IntList(), flat = new IntList();
+    //the body and quantifier ('*' or '?') of each group, numbered after the declared symbols
+    ArrayList<int[]> groups = new ArrayList<int[]>();
+    IntList groupKind = new IntList(), body = new IntList();
+    ArrayList<ArrayList<ConcatExpr>> alts = new ArrayList<ArrayList<ConcatExpr>>();
+    for (int s = 0; s < declared; s++) {
+      symbolStarts.add(starts.size);
+      int o = prevId[s];
+      if (o >= 0) { //unchanged: renumber the symbols of its items
+        for (int a = prev.altStart[o]; a < prev.altStart[o + 1]; a++) {
+          starts.add(flat.size);
+          for (int i = prev.itemStart[a]; i < prev.itemStart[a + 1]; i++) {
+            int item = prev.items[i];
+            if (item < 0) {
+              flat.add(item);
+            } else if (item < prev.declared) {
+              flat.add(newId[item]);
+            } else { //a group, whose body is copied in turn
+              int[] b = Arrays.copyOfRange(prev.items, prev.itemStart[prev.altStart[item]],
+                                           prev.itemStart[prev.altStart[item] + 1]);
+              for (int j = 0; j < b.length; j++) if (b[j] >= 0) b[j] = newId[b[j]];
+              flat.add(declared + groups.size());
+              groups.add(b);
+              groupKind.add(prev.repeats[item] ? '*' : '?');
+            }
+          }
+        }
+        continue;
+      }
+      alts.clear();
+      flatten(defs.get(order.get(s)), alts);
+      for (ArrayList<ConcatExpr> alt : alts) {
+        starts.add(flat.size);
+        for (ConcatExpr ce : alt) {
+          if (ce.quantifier == 0) {
+            compile(ce, flat, lits);
+            continue;
+          }
+          if (ce.items.isEmpty()) continue; //an empty group only ever matches empty
+          body.clear();
+          compile(ce, body, lits);
+          //{x}+ is compiled as x {x}*
+          if (ce.quantifier == '+')
+            for (int i = 0; i < body.size; i++) flat.add(body.a[i]);
+          flat.add(declared + groups.size());
+          groups.add(Arrays.copyOf(body.a, body.size));
+          groupKind.add(ce.quantifier == '?' ? '?' : '*');
+        }
+      }
+    }
+    //a repeated group has its body as its only alternative,
+    //and an optional group has the empty alternative as well
+    symbols = Arrays.copyOf(order.toArray(new String[declared]), declared + groups.size());
+    repeats = new boolean[symbols.length];
+    for (int g = 0; g < groups.size(); g++) {
+      symbols[declared + g] = "{" + g + "}";
+      repeats[declared + g] = groupKind.a[g] == '*';
+      symbolStarts.add(starts.size);
+      starts.add(flat.size);
+      for (int item : groups.get(g)) flat.add(item);
+      if (!repeats[declared + g]) starts.add(flat.size);
+    }
+    symbolStarts.add(starts.size);
+    starts.add(flat.size);
+    altStart = Arrays.copyOf(symbolStarts.a, symbolStarts.size);
+    itemStart = Arrays.copyOf(starts.a, starts.size);
+    items = Arrays.copyOf(flat.a, flat.size);
+    //literals carried over that no definition uses any more are kept, so the
+    //ids of copied items stay valid, until they outnumber the used ones
+    boolean renumbered = prev != null && compactLiterals(lits);
+    altSymbol = new int[starts.size - 1];
+    for (int s = 0; s < symbols.length; s++)
+      Arrays.fill(altSymbol, altStart[s], altStart[s + 1], s);
+    literals = lits.toArray(new String[lits.size()]);
+    hashLiterals();
+
+    lookahead = new Lookahead(this);
+
+    //group the alternatives of each symbol by the literals they can begin with
+    int n = altSymbol.length, others = 0, entries = 0;
+    int[] lead = new int[n];
+    for (int a = 0; a < n; a++) {
+      lead[a] = leadingSymbol(a);
+      if (lead[a] < 0) entries++;
+      else if (lead[a] < symbols.length) entries += lookahead.firstStart[lead[a] + 1] - lookahead.firstStart[lead[a]];
+      else others++;
+    }
+    otherStart = new int[symbols.length + 1];
+    otherAlts = new int[others];
+    int o = 0;
+    for (int s = 0; s < symbols.length; s++) {
+      otherStart[s] = o;
+      for (int a = altStart[s]; a < altStart[s + 1]; a++)
+        if (lead[a] == symbols.length) otherAlts[o++] = a;
+    }
+    otherStart[symbols.length] = o;
+
+    //every (key, alternative) pair, in the order of the alternatives
+    long[] keys = new long[entries];
+    int[] keyAlt = new int[entries];
+    int e = 0;
+    for (int a = 0; a < n; a++) {
+      if (lead[a] < 0) {
+        keys[e] = key(altSymbol[a], ~items[itemStart[a]]);
+        keyAlt[e++] = a;
+      } else if (lead[a] < symbols.length) {
+        for (int k = lookahead.firstStart[lead[a]]; k < lookahead.firstStart[lead[a] + 1]; k++) {
+          keys[e] = key(altSymbol[a], lookahead.first[k]);
+          keyAlt[e++] = a;
+        }
+      }
+    }
+    int capacity = 2;
+    while (capacity < 2 * entries) capacity *= 2;
+    slotKey = new long[capacity];
+    slotStart = new int[capacity];
+    slotEnd = new int[capacity];
+    Arrays.fill(slotKey, -1);
+    firstAlts = new int[entries];
+    //count the alternatives per key, then lay each key's out contiguously
+    for (int i = 0; i < entries; i++) {
+      int slot = probe(keys[i]);
+      slotKey[slot] = keys[i];
+      slotEnd[slot]++;
+    }
+    int l = 0;
+    for (int slot = 0; slot < capacity; slot++) {
+      int count = slotEnd[slot];
+      slotStart[slot] = slotEnd[slot] = l;
+      l += count;
+    }
+    for (int i = 0; i < entries; i++) firstAlts[slotEnd[find(keys[i])]++] = keyAlt[i];
+    prevId = Arrays.copyOf(prevId, symbols.length);
+    Arrays.fill(prevId, declared, symbols.length, -1); //groups are never copied
+    lexicon = new Lexicon(this, prev == null || renumbered ? null : prev.lexicon, prevId);
+  }
+
+  /**
+   * Drops the literals that no item uses, if they outnumber those used,
+   * renumbering the rest in the items and in literalIds
+   * @param lits  the literals, by id, from which unused ones are removed
+   * @return      whether the literals were renumbered
+   */
+  private boolean compactLiterals(ArrayList<String> lits) {
+    int[] newLit = new int[lits.size()];
+    int used = 0;
+    for (int item : items) if (item < 0 && newLit[~item]++ == 0) used++;
+    if (lits.size() - used <= used) return false;
+    ArrayList<String> kept = new ArrayList<String>(used);
+    literalIds.clear();
+    for (int l = 0; l < newLit.length; l++) {
+      if (newLit[l] == 0) {
+        newLit[l] = -1;
+        continue;
+      }
+      newLit[l] = kept.size();
+      literalIds.put(lits.get(l), kept.size());
+      kept.add(lits.get(l));
+    }
+    for (int i = 0; i < items.length; i++) if (items[i] < 0) items[i] = ~newLit[~items[i]];
+    lits.clear();
+    lits.addAll(kept);
+    return true;
+  }
+
+  /**
+   * @param a   an alternative, once lookahead is computed
+   * @return    its first item if that is a literal (as ~literal id), the symbol
+   *            whose FIRST set it begins with, or symbols.length if it must be
+   *            tried at any token
+   */
+  private int leadingSymbol(int a) {
+    if (itemStart[a] == itemStart[a + 1]) return symbols.length;
+    int item = items[itemStart[a]];
+    if (item < 0) return item;
+    //a symbol that can match empty lets the alternative begin with what follows,
+    //and records the empty match wherever it is tried
+    if (lookahead.nullable(item) || lookahead.emptyAt(item) || !lookahead.firstKnown(item))
+      return symbols.length;
+    return item;
+  }
+
+  private static long key(int sym, int lit) {
+    return ((long)sym << 32) | lit;
+  }
+
+  /**
+   * @return  the slot holding key, or the empty slot where it would be inserted
+   */
+  private int probe(long key) {
+    int mask = slotKey.length - 1;
+    int h = (int)(key ^ (key >>> 29)) * 0x9E3779B9;
+    int slot = (h ^ (h >>> 16)) & mask;
+    while (slotKey[slot] != -1 && slotKey[slot] != key) slot = (slot + 1) & mask;
+    return slot;
+  }
+
+  private int find(long key) {
+    int slot = probe(key);
+    return slotKey[slot] == key ? slot : -1;
+  }
+
+  /**
+   * Finds the alternatives of a symbol that can begin with a literal
+   * @param sym   a symbol id
+   * @param lit   a literal id
+   * @return      a slot whose alternatives are firstAlts[slotStart[slot]] to
+   *              firstAlts[slotEnd[slot] - 1], or -1 if there are none
+   */
+  int dispatch(int sym, int lit) {
+    return find(key(sym, lit));
+  }
+
+  /**
+   * Reads a grammar written by write(), without any parsing or compiling
+   * @param in  a buffer positioned at the start of the grammar
+   */
+  Grammar(ByteBuffer in) {
+    symbols = Snapshot.readStrings(in);
+    literals = Snapshot.readStrings(in);
+    declared = in.getInt();
+    altStart = Snapshot.readInts(in);
+    altSymbol = Snapshot.readInts(in);
+    itemStart = Snapshot.readInts(in);
+    items = Snapshot.readInts(in);
+    otherStart = Snapshot.readInts(in);
+    otherAlts = Snapshot.readInts(in);
+    slotKey = Snapshot.readLongs(in);
+    slotStart = Snapshot.readInts(in);
+    slotEnd = Snapshot.readInts(in);
+    firstAlts = Snapshot.readInts(in);
+    lookahead = new Lookahead(in);
+    lexicon = new Lexicon(in);
+    repeats = new boolean[symbols.length];
+    for (int s = declared; s < symbols.length; s++) repeats[s] = altStart[s + 1] - altStart[s] == 1;
+    for (int i = 0; i < declared; i++) symbolIds.put(symbols[i], i);
+    for (int i = 0; i < literals.length; i++) literalIds.put(literals[i], i);
+    hashLiterals();
+  }
+
+  private void hashLiterals() {
+    literalTable = new int[Integer.highestOneBit(Math.max(1, literals.length)) * 4];
+    int mask = literalTable.length - 1;
+    for (int i = 0; i < literals.length; i++) {
+      int slot = mix(literals[i].hashCode()) & mask;
+      while (literalTable[slot] != 0) slot = (slot + 1) & mask;
+      literalTable[slot] = i + 1;
+    }
+  }
+
+  private static int mix(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Writes every array of the grammar, in the order read by Grammar(ByteBuffer)
+   * @param out   the stream to write to
+   */
+  void write(DataOutputStream out) throws IOException {
+    Snapshot.writeStrings(out, symbols);
+    Snapshot.writeStrings(out, literals);
+    out.writeInt(declared);
+    Snapshot.writeInts(out, altStart);
+    Snapshot.writeInts(out, altSymbol);
+    Snapshot.writeInts(out, itemStart);
+    Snapshot.writeInts(out, items);
+    Snapshot.writeInts(out, otherStart);
+    Snapshot.writeInts(out, otherAlts);
+    Snapshot.writeLongs(out, slotKey);
+    Snapshot.writeInts(out, slotStart);
+    Snapshot.writeInts(out, slotEnd);
+    Snapshot.writeInts(out, firstAlts);
+    lookahead.write(out);
+    lexicon.write(out);
+  }
+
+  /**
+   * Expands a BranchExpr into its list of alternatives, each a sequence of
+   * ConcatExprs, which are groups if they have a quantifier
+   * @param be    the BranchExpr to expand
+   * @param alts  the list to which alternatives are appended
+   */
+  private static void flatten(BranchExpr be, List<ArrayList<ConcatExpr>> alts) {
+    if (be == null) { //empty definition
+      alts.add(new ArrayList<ConcatExpr>());
+      return;
+    }
+    if (be.isUnion) {
+      for (BranchExpr alt : be.alts) flatten(alt, alts);
+      return;
+    }
+    alts.add(new ArrayList<ConcatExpr>(be.expr));
+  }
+
+  /**
+   * Compiles the items of a ConcatExpr, numbering any new literals
+   * @param ce    the items to compile
+   * @param out   the list to which the compiled items are appended
+   * @param lits  the literals numbered so far, indexed by id
+   */
+  private void compile(ConcatExpr ce, IntList out, ArrayList<String> lits) {
+    for (ConcatExpr.Item item : ce.items) {
+      if (item.isLiteral) {
+        String lit = item.value.toLowerCase();
+        Integer id = literalIds.get(lit);
+        if (id == null) {
+          id = lits.size();
+          literalIds.put(lit, id);
+          lits.add(lit);
+        }
+        out.add(~id);
+      } else {
+        out.add(symbolIds.get(item.value));
+      }
+    }
+  }
+
+  /**
+   * @param symbol  the name of a symbol
+   * @return        the id of the symbol, or -1 if it is not defined
+   */
+  int symbolId(String symbol) {
+    Integer id = symbolIds.get(symbol);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * @param literal   a literal value, in any case
+   * @return          the id of the literal, or -1 if no definition uses it
+   */
+  int literalId(String literal) {
+    Integer id = literalIds.get(literal.toLowerCase());
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * Looks up a token in place, without making a String of it unless it has
+   * characters outside ASCII, whose case is folded by String.toLowerCase()
+   * @param text  the text the token was found in
+   * @param lo    offset of the first character of the token
+   * @param hi    offset after the last character of the token
+   * @param t     the tokenizer that found it, whose punctuation is skipped
+   * @return      the id of the token as a literal, or -1 if no definition uses it
+   */
+  int literalId(CharSequence text, int lo, int hi, Tokenizer t) {
+    int h = 0;
+    for (int i = lo; i < hi; i++) {
+      char c = text.charAt(i);
+      if (c >= 128) return literalId(t.token(text, lo, hi));
+      if (t.isPunctuation(c)) continue;
+      h = 31 * h + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+    }
+    int mask = literalTable.length - 1;
+    for (int slot = mix(h) & mask, id; (id = literalTable[slot] - 1) >= 0; slot = (slot + 1) & mask)
+      if (literals[id].hashCode() == h && sameLiteral(literals[id], text, lo, hi, t)) return id;
+    return -1;
+  }
+
+  /**
+   * @return  whether the ASCII token in text[lo, hi) is the literal, once
+   *          lower case and without punctuation
+   */
+  private static boolean sameLiteral(String literal, CharSequence text, int lo, int hi, Tokenizer t) {
+    int k = 0;
+    for (int i = lo; i < hi; i++) {
+      char c = text.charAt(i);
+      if (t.isPunctuation(c)) continue;
+      if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+      if (k == literal.length() || literal.charAt(k++) != c) return false;
+    }
+    return k == literal.length();
+  }
+
+  /**
+   * @return  the number of alternatives over all symbols
+   */
+  int altCount() {
+    return altSymbol.length;
+  }
+
+  /**
+   * @param alt   an alternative
+   * @param i     index in items of one of its items, or of its end
+   * @return      whether the items of alt from i on can all match no tokens,
+   *              as optional and repeated groups can, so that alt may end
+   *              at the end of the text before reaching them
+   */
+  boolean emptyFrom(int alt, int i) {
+    for (; i < itemStart[alt + 1]; i++)
+      if (items[i] < 0 || !lookahead.nullable(items[i])) return false;
+    return true;
+  }
+
+}
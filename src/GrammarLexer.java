@@ -0,0 +1,278 @@
+/**
+ * GrammarLexer splits Backus-Naur definitions into tokens in a single pass
+ * over a Reader, recording the line and column at which each token starts.
+ *
+ * Only the token being read is buffered, so memory use does not depend on
+ * the size of the input. The rules are:
+ *  - whitespace separates tokens, and "quoted text" is split into its words
+ *  - { } [ ] are tokens of their own, as is a *, + or ? right after },
+ *    and [ ] is read as { } ?
+ *  - | is a union if neither of its neighbours is a word character, quote,
+ *    apostrophe or angle bracket, and any punctuation around it is dropped
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+
+class GrammarLexer {
+
+  private final Reader in;
+  private int peek = -2;     //the next character, -1 at the end, or -2 if not read yet
+  private int prev = '\n';   //the last character consumed
+  private int line = 1, column = 0;
+
+  private final StringBuilder curr = new StringBuilder();
+  private int currLine, currColumn;
+  private int lastLine; //line of the last token returned
+
+  //tokens found but not yet returned
+  private final ArrayDeque<String> queue = new ArrayDeque<String>();
+  private final ArrayDeque<int[]> queuePos = new ArrayDeque<int[]>();
+  //tokens ending in punctuation, held back in case a union follows and drops it
+  private final ArrayDeque<String> held = new ArrayDeque<String>();
+  private final ArrayDeque<int[]> heldPos = new ArrayDeque<int[]>();
+
+  //the current token
+  private String token;
+  private int tokenLine, tokenColumn;
+  private boolean firstOnLine;
+
+  /**
+   * Constructor
+   * @param in  the definitions to be read
+   */
+  public GrammarLexer(Reader in) {
+    this.in = in;
+  }
+
+  /**
+   * @return  the current token
+   */
+  public String token() {
+    return token;
+  }
+
+  /**
+   * @return  the line of the current token, starting from 1
+   */
+  public int line() {
+    return tokenLine;
+  }
+
+  /**
+   * @return  the column of the current token, starting from 1
+   */
+  public int column() {
+    return tokenColumn;
+  }
+
+  /**
+   * @return  whether the current token is the first on its line
+   */
+  public boolean firstOnLine() {
+    return firstOnLine;
+  }
+
+  /**
+   * Advances to the next token
+   * @return  false if there are no more tokens
+   */
+  public boolean next() throws IOException {
+    while (queue.isEmpty()) {
+      if (!scan()) {
+        release();
+        if (queue.isEmpty()) return false;
+      }
+    }
+    token = queue.poll();
+    int[] pos = queuePos.poll();
+    firstOnLine = pos[0] != lastLine;
+    tokenLine = lastLine = pos[0];
+    tokenColumn = pos[1];
+    return true;
+  }
+
+  private int peek() throws IOException {
+    if (peek == -2) peek = in.read();
+    return peek;
+  }
+
+  private int read() throws IOException {
+    int c = peek();
+    peek = -2;
+    if (c == '\n') {
+      line++;
+      column = 0;
+    } else if (c != -1) {
+      column++;
+    }
+    return c;
+  }
+
+  private static boolean isWord(int c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+           (c >= '0' && c <= '9') || c == '_';
+  }
+
+  private static boolean isSpace(int c) {
+    return c == ' ' || c == '\t' || c == '\r' || c == '\f';
+  }
+
+  private static boolean isBrace(int c) {
+    return c == '{' || c == '}' || c == '[' || c == ']';
+  }
+
+  /**
+   * @return  whether c may surround a union |, i.e. is not \w, a quote,
+   *          an apostrophe or an angle bracket
+   */
+  private static boolean isSeparator(int c) {
+    return !(isWord(c) || c == '"' || c == '\'' || c == '<' || c == '>');
+  }
+
+  /**
+   * @return  the length of s without the characters at its end that could surround a union
+   */
+  private static int trimPunct(CharSequence s) {
+    int n = s.length();
+    while (n > 0 && isSeparator(s.charAt(n - 1)) && !isBrace(s.charAt(n - 1))) n--;
+    return n;
+  }
+
+  private void emit(String s, int l, int c) {
+    queue.add(s);
+    queuePos.add(new int[] { l, c });
+  }
+
+  /**
+   * Emits the held tokens unchanged
+   */
+  private void release() {
+    while (!held.isEmpty()) emit(held.poll(), heldPos.peek()[0], heldPos.poll()[1]);
+  }
+
+  /**
+   * Ends the current token. A token ending in punctuation is held back,
+   * and so is any punctuation that follows it.
+   */
+  private void flush() {
+    if (curr.length() == 0) return;
+    int n = trimPunct(curr);
+    if (n > 0) release();
+    if (n < curr.length()) {
+      held.add(curr.toString());
+      heldPos.add(new int[] { currLine, currColumn });
+    } else {
+      emit(curr.toString(), currLine, currColumn);
+    }
+    curr.setLength(0);
+  }
+
+  private void append(int c) {
+    if (curr.length() == 0) {
+      currLine = line;
+      currColumn = column;
+    }
+    curr.append((char)c);
+  }
+
+  /**
+   * Reads characters until at least one token is found or held back
+   * @return  false if the end of the input was reached
+   */
+  private boolean scan() throws IOException {
+    int c = read();
+    if (c == -1) {
+      flush();
+      return false;
+    }
+    int before = prev;
+    prev = c;
+    if (c == '\n') {
+      flush();
+      release();
+    } else if (isSpace(c)) {
+      flush();
+    } else if (c == '"') {
+      flush();
+      quote();
+    } else if (isBrace(c)) {
+      flush();
+      release();
+      emit(c == '[' ? "{" : c == ']' ? "}" : String.valueOf((char)c), line, column);
+      if (c == ']') emit("?", line, column);
+    } else if ((c == '*' || c == '+' || c == '?') && before == '}') {
+      //a quantifier, which is kept even next to a union
+      release();
+      emit(String.valueOf((char)c), line, column);
+    } else if (c == '|' && before != '\n' && isSeparator(before) &&
+               peek() != '\n' && peek() != -1 && isSeparator(peek())) {
+      //a union: drop the punctuation around it, as in "a, | b"
+      int l = line, col = column;
+      curr.setLength(trimPunct(curr));
+      flush();
+      if (!held.isEmpty()) {
+        String first = held.peek();
+        int n = trimPunct(first);
+        if (n > 0) emit(first.substring(0, n), heldPos.peek()[0], heldPos.peek()[1]);
+        held.clear();
+        heldPos.clear();
+      }
+      emit("|", l, col);
+      while (peek() != -1 && peek() != '\n' && isSeparator(peek()) && !isBrace(peek()))
+        prev = read();
+    } else {
+      append(c);
+    }
+    return true;
+  }
+
+  /**
+   * Reads a quoted string after its opening quote, splitting it into words
+   * on single spaces. Each union in it and the punctuation around it, a run
+   * of punctuation and spaces with a | inside, is read as " | ", as outside
+   * of quotes. An unclosed quote ends with its line, as a single token.
+   */
+  private void quote() throws IOException {
+    release();
+    int l = line, col = column + 1;
+    StringBuilder q = new StringBuilder();
+    int run = -1; //where the punctuation and spaces being read begin in q, or -1
+    boolean union = false; //whether there is a | inside them
+    int c;
+    while ((c = peek()) != -1 && c != '\n' && c != '"') {
+      read();
+      prev = c;
+      if (!isSeparator(c)) {
+        if (union) q.replace(run, q.length(), " | ");
+        run = -1;
+        union = false;
+      } else if (run < 0) {
+        run = q.length();
+      } else if (q.charAt(q.length() - 1) == '|' && q.length() - 1 > run) {
+        union = true;
+      }
+      q.append((char)c);
+    }
+    if (union) q.replace(run, q.length(), " | ");
+    if (c != '"') {
+      if (q.length() > 0) emit(q.toString(), l, col);
+      return;
+    }
+    prev = read();
+    //as String.split(" "), which drops the empty words at the end
+    int n = q.length();
+    while (n > 0 && q.charAt(n - 1) == ' ') n--;
+    if (n == 0 && q.length() > 0) return;
+    for (int i = 0, start = 0; i <= n; i++) {
+      if (i < n && q.charAt(i) != ' ') continue;
+      emit(q.substring(start, i), l, col + start);
+      start = i + 1;
+    }
+  }
+
+}
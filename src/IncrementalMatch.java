@@ -0,0 +1,202 @@
+/**
+ * IncrementalMatch matches a symbol against successive versions of a text
+ * being edited, redoing only the work that the edits could have changed.
+ *
+ * The tokens and the memo table of each run are kept for the next. What
+ * changed since is found by comparing the new text with the old from both
+ * ends, so edits need not be reported, and the tokens over the changed
+ * characters, up to the whitespace around them, are tokenized again. Every
+ * memoized outcome records one more than the last token it depends on, so
+ * an outcome is kept if it depends only on tokens before the changed ones,
+ * or only on tokens after them, which are moved to their new positions.
+ * The symbol is then matched from the first token again, mostly from the
+ * memo table. Each outcome also records the calls it made, which a memo hit
+ * replays to record the sub-matches below it again, so that the result
+ * holds exactly the sub-matches of a match from scratch.
+ *
+ * This holds for the recursive descent matcher, without the compiled tier.
+ * Grammars matched otherwise (see BackusNaur.setEngine()) are matched again
+ * from scratch every time.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.util.Arrays;
+
+public class IncrementalMatch {
+
+  private final BackusNaur bn;
+  private final String symbol;
+  private final int sym;
+
+  //the last run: its result, the literal id of each token, and its memo
+  //table, whose rows are filled in as in MatchContext
+  private MatchResult last;
+  private int[] lits;
+  private int[][] memo, reach;
+  private MatchContext.Calls calls;
+  private int reused; //tokens of the last run kept from the run before
+
+  /**
+   * Constructor
+   * @param bn      the grammar to match with
+   * @param symbol  symbol to be matched, which must be a key of bn.defs
+   */
+  public IncrementalMatch(BackusNaur bn, String symbol) throws Exception {
+    this.bn = bn;
+    this.symbol = symbol;
+    sym = bn.grammar.symbolId(symbol);
+    if (sym < 0)
+      throw new Exception("Error: symbol <" + symbol + "> not defined.");
+  }
+
+  /**
+   * Matches the current version of the text, within the grammar's budget
+   * @param t   the text, which must not change while the result is in use
+   * @return    the match status and every sub-match found
+   */
+  public MatchResult match(CharSequence t) throws Exception {
+    return match(t, bn.budget, null);
+  }
+
+  /**
+   * Matches the current version of the text, continuing from the last run
+   * @param t         the text, which must not change while the result is in use
+   * @param b         the limits of the search
+   * @param progress  to which progress is published, or null
+   * @return          the match status and every sub-match found
+   */
+  public synchronized MatchResult match(CharSequence t, MatchBudget b, MatchProgress progress) throws Exception {
+    if (!bn.descends()) {
+      last = null;
+      return bn.match(symbol, t, b, progress);
+    }
+    Grammar g = bn.grammar;
+    MatchResult res;
+    if (last == null || last.tokenizer != bn.tokenizer) {
+      res = bn.tokenize(t);
+      lits = bn.literalIds(res);
+      memo = new int[g.symbols.length][];
+      reach = new int[g.symbols.length][];
+      calls = new MatchContext.Calls(g.symbols.length);
+      reused = 0;
+    } else {
+      res = update(t);
+    }
+    if (progress != null) progress.start(lits.length);
+    int endidx;
+    if (lits.length == 0) { //as in BackusNaur.match()
+      endidx = g.lookahead.nullable(sym) ? 0 : -1;
+    } else {
+      MatchContext ctx = new MatchContext(g, lits, res, memo, reach, calls, b, progress, null);
+      endidx = ctx.run(sym);
+      res.memoHits = ctx.memoHits;
+      res.memoMisses = ctx.memoMisses;
+    }
+    res.matched = endidx == lits.length;
+    if (res.matched) res.add(sym, 0, lits.length);
+    if (progress != null) progress.update(lits.length, res.size());
+    last = res;
+    return res;
+  }
+
+  /**
+   * Tokenizes the changes to the text since the last run, and carries its
+   * tokens and memo table over to the new text
+   * @param t   the new version of the text
+   * @return    a result over the new tokens, with no sub-matches yet
+   */
+  private MatchResult update(CharSequence t) {
+    Tokenizer tk = last.tokenizer;
+    CharSequence old = last.getText();
+    int n = last.tokenCount();
+    //[p, oldLen - q) of the old text is now [p, newLen - q)
+    int oldLen = old.length(), newLen = t.length(), p = 0, q = 0;
+    int common = Math.min(oldLen, newLen);
+    while (p < common && old.charAt(p) == t.charAt(p)) p++;
+    while (q < common - p && old.charAt(oldLen - 1 - q) == t.charAt(newLen - 1 - q)) q++;
+    int shift = newLen - oldLen;
+
+    //the old tokens [i0, i1) may have changed: those ending at or after p,
+    //which more characters may extend, and starting at or before oldLen - q
+    int i0 = 0, i1;
+    for (int hi = n; i0 < hi; ) {
+      int mid = (i0 + hi) >>> 1;
+      if (last.tokenEnd(mid) >= p) hi = mid;
+      else i0 = mid + 1;
+    }
+    i1 = i0;
+    for (int hi = n; i1 < hi; ) {
+      int mid = (i1 + hi) >>> 1;
+      if (last.tokenStart(mid) > oldLen - q) hi = mid;
+      else i1 = mid + 1;
+    }
+    //tokenize them again, from and to whitespace
+    int from = i0 < n ? Math.min(p, last.tokenStart(i0)) : p;
+    while (from > 0 && !tk.isWhitespace(t.charAt(from - 1))) from--;
+    int to = i1 < n ? last.tokenStart(i1) + shift : newLen;
+    IntList changed = new IntList();
+    tk.tokenize(t, from, to, changed);
+    int m = changed.size / 2, d = m - (i1 - i0), count = n + d;
+
+    int[] bounds = new int[2 * count], newLits = new int[count];
+    for (int i = 0; i < i0; i++) {
+      bounds[2 * i] = last.tokenStart(i);
+      bounds[2 * i + 1] = last.tokenEnd(i);
+    }
+    System.arraycopy(changed.a, 0, bounds, 2 * i0, changed.size);
+    for (int i = i1; i < n; i++) {
+      bounds[2 * (i + d)] = last.tokenStart(i) + shift;
+      bounds[2 * (i + d) + 1] = last.tokenEnd(i) + shift;
+    }
+    System.arraycopy(lits, 0, newLits, 0, i0);
+    for (int i = i0; i < i0 + m; i++)
+      newLits[i] = bn.grammar.literalId(t, bounds[2 * i], bounds[2 * i + 1], tk);
+    System.arraycopy(lits, i1, newLits, i1 + d, n - i1);
+    lits = newLits;
+    reused = count - m;
+
+    //keep the outcomes that depend only on tokens before i0, or from i1 on,
+    //with the calls they made; outcomes are held relative to where they
+    //start, so those from i1 on are moved as they are
+    for (int s = 0; s < memo.length; s++) {
+      int[] ends = memo[s], deps = reach[s], at = calls.at[s];
+      if (ends == null) continue;
+      for (int i = 0; i < i1; i++) {
+        if (ends[i] == MatchContext.UNKNOWN || (i < i0 && i + deps[i] <= i0)) continue;
+        calls.garbage += calls.size(s, i);
+        ends[i] = MatchContext.UNKNOWN;
+        at[i] = 0;
+      }
+      if (ends.length <= count) { //room for more tokens than were added
+        int length = Math.max(count + 1, ends.length + ends.length / 2);
+        memo[s] = ends = Arrays.copyOf(ends, length);
+        reach[s] = deps = Arrays.copyOf(deps, length);
+        calls.at[s] = at = Arrays.copyOf(at, length);
+        calls.stamp[s] = Arrays.copyOf(calls.stamp[s], length);
+      }
+      System.arraycopy(ends, i1, ends, i1 + d, n + 1 - i1);
+      System.arraycopy(deps, i1, deps, i1 + d, n + 1 - i1);
+      System.arraycopy(at, i1, at, i1 + d, n + 1 - i1);
+      //the new tokens, and if there are fewer, the moved outcomes left past the end
+      Arrays.fill(ends, i0, i0 + m, MatchContext.UNKNOWN);
+      Arrays.fill(at, i0, i0 + m, 0);
+      if (d < 0) {
+        Arrays.fill(ends, count + 1, n + 1, MatchContext.UNKNOWN);
+        Arrays.fill(at, count + 1, n + 1, 0);
+      }
+    }
+    calls.compact();
+    return new MatchResult(bn.grammar, t, bounds, count, tk);
+  }
+
+  /**
+   * @return  the number of tokens of the last run carried over from the one
+   *          before, rather than tokenized again
+   */
+  public synchronized int getReusedTokens() {
+    return reused;
+  }
+
+}
@@ -0,0 +1,46 @@
+/**
+ * Growable list of primitive ints, to avoid boxing in the matchers' inner loops.
+ * 
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.util.Arrays;
+
+class IntList {
+  
+  int[] a;
+  int size;
+  
+  /**
+   * Constructor
+   */
+  public IntList() {
+    a = new int[8];
+  }
+  
+  /**
+   * Appends a value to the end of the list
+   * @param v   the value to be added
+   */
+  public void add(int v) {
+    if (size == a.length) a = Arrays.copyOf(a, size * 2);
+    a[size++] = v;
+  }
+  
+  /**
+   * @param i   index of the value to get
+   * @return    the i-th value in the list
+   */
+  public int get(int i) {
+    return a[i];
+  }
+  
+  /**
+   * Removes all values from the list, keeping its capacity
+   */
+  public void clear() {
+    size = 0;
+  }
+  
+}
@@ -0,0 +1,239 @@
+/**
+ * Lexicon is a token-level trie over the literal-only definitions of a Grammar.
+ *
+ * Dictionary rules like <fruit> ::= apple | goji berry | rock melon | ...
+ * consist only of literal alternatives. Each such symbol gets its own root
+ * in one shared trie, whose edges are literal ids, so matching the symbol is
+ * a single walk from the current token instead of trying every alternative.
+ * Edges are stored in an open-addressing hash table keyed by (node, literal).
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+final class Lexicon {
+
+  private final int[] root;           //root node of each symbol, or -1
+  private final boolean[] accepting;  //whether a node ends an entry
+  //number of nodes in the trie of each symbol, or null if unknown
+  private final int[] size;
+
+  private final long[] edgeKey;       //(node, literal) pairs, or -1 if empty
+  private final int[] edgeChild;
+
+  /**
+   * Builds the trie for every symbol of g whose alternatives are all
+   * non-empty sequences of literals
+   * @param g   the grammar, whose alternatives must already be compiled
+   */
+  Lexicon(Grammar g) {
+    this(g, null, null);
+  }
+
+  /**
+   * Builds the trie for every symbol of g whose alternatives are all
+   * non-empty sequences of literals, sharing the nodes of an earlier trie
+   * for the symbols that are unchanged. The nodes of changed symbols are
+   * left unreachable, until they outnumber the reachable ones and the
+   * trie is built afresh.
+   * @param g         the grammar, whose alternatives must already be compiled
+   * @param prev      the trie of an earlier grammar with the same literal ids, or null
+   * @param prevId    for each symbol of g, its id in the earlier grammar if
+   *                  it is unchanged, or -1
+   */
+  Lexicon(Grammar g, Lexicon prev, int[] prevId) {
+    int n = g.symbols.length;
+    root = new int[n];
+    size = new int[n];
+    Arrays.fill(root, -1);
+    int live = 0;
+    if (prev != null && prev.size != null) {
+      for (int s = 0; s < n; s++)
+        if (prevId[s] >= 0 && prev.root[prevId[s]] >= 0) live += prev.size[prevId[s]];
+      if (prev.accepting.length - live > live) prev = null;
+    } else {
+      prev = null;
+    }
+
+    IntList accept = new IntList();
+    long[] keys;
+    int[] children;
+    int edges = 0;
+    if (prev == null) {
+      keys = new long[16];
+      children = new int[16];
+      Arrays.fill(keys, -1);
+    } else {
+      for (boolean b : prev.accepting) accept.add(b ? 1 : 0);
+      keys = prev.edgeKey.clone();
+      children = prev.edgeChild.clone();
+      for (long key : keys) if (key != -1) edges++;
+    }
+    for (int s = 0; s < n; s++) {
+      if (prev != null && prevId[s] >= 0 && prev.root[prevId[s]] >= 0) {
+        root[s] = prev.root[prevId[s]];
+        size[s] = prev.size[prevId[s]];
+        continue;
+      }
+      if (!literalOnly(g, s)) continue;
+      int first = accept.size;
+      root[s] = first;
+      accept.add(0);
+      for (int a = g.altStart[s]; a < g.altStart[s + 1]; a++) {
+        int node = root[s];
+        for (int i = g.itemStart[a]; i < g.itemStart[a + 1]; i++) {
+          long key = key(node, ~g.items[i]);
+          int slot = probe(keys, key);
+          if (keys[slot] == -1) {
+            if (2 * (edges + 1) > keys.length) {
+              long[] k = keys;
+              int[] c = children;
+              keys = new long[2 * k.length];
+              children = new int[2 * k.length];
+              Arrays.fill(keys, -1);
+              for (int j = 0; j < k.length; j++) {
+                if (k[j] == -1) continue;
+                int t = probe(keys, k[j]);
+                keys[t] = k[j];
+                children[t] = c[j];
+              }
+              slot = probe(keys, key);
+            }
+            keys[slot] = key;
+            children[slot] = accept.size;
+            accept.add(0);
+            edges++;
+          }
+          node = children[slot];
+        }
+        accept.a[node] = 1;
+      }
+      size[s] = accept.size - first;
+    }
+    accepting = new boolean[accept.size];
+    for (int i = 0; i < accept.size; i++) accepting[i] = accept.a[i] != 0;
+    edgeKey = keys;
+    edgeChild = children;
+  }
+
+  /**
+   * Reads a trie written by write()
+   * @param in  a buffer positioned at the start of the trie
+   */
+  Lexicon(ByteBuffer in) {
+    root = Snapshot.readInts(in);
+    size = null;
+    int[] accept = Snapshot.readInts(in);
+    accepting = new boolean[accept.length];
+    for (int i = 0; i < accept.length; i++) accepting[i] = accept[i] != 0;
+    edgeKey = Snapshot.readLongs(in);
+    edgeChild = Snapshot.readInts(in);
+  }
+
+  /**
+   * Writes the trie, in the order read by Lexicon(ByteBuffer)
+   * @param out   the stream to write to
+   */
+  void write(DataOutputStream out) throws IOException {
+    Snapshot.writeInts(out, root);
+    int[] accept = new int[accepting.length];
+    for (int i = 0; i < accept.length; i++) accept[i] = accepting[i] ? 1 : 0;
+    Snapshot.writeInts(out, accept);
+    Snapshot.writeLongs(out, edgeKey);
+    Snapshot.writeInts(out, edgeChild);
+  }
+
+  /**
+   * @return  whether all alternatives of symbol s are non-empty and literal-only,
+   *          and s is not a repeated group
+   */
+  private static boolean literalOnly(Grammar g, int s) {
+    if (g.altStart[s] == g.altStart[s + 1] || g.repeats[s]) return false;
+    for (int a = g.altStart[s]; a < g.altStart[s + 1]; a++) {
+      if (g.itemStart[a] == g.itemStart[a + 1]) return false;
+      for (int i = g.itemStart[a]; i < g.itemStart[a + 1]; i++)
+        if (g.items[i] >= 0) return false;
+    }
+    return true;
+  }
+
+  private static long key(int node, int lit) {
+    return ((long)node << 32) | lit;
+  }
+
+  private static int probe(long[] keys, long key) {
+    int mask = keys.length - 1;
+    int h = (int)(key ^ (key >>> 29)) * 0x9E3779B9;
+    int slot = (h ^ (h >>> 16)) & mask;
+    while (keys[slot] != -1 && keys[slot] != key) slot = (slot + 1) & mask;
+    return slot;
+  }
+
+  /**
+   * @return  the child of node along the literal lit, or -1 if there is none
+   */
+  int child(int node, int lit) {
+    if (lit < 0) return -1;
+    int slot = probe(edgeKey, key(node, lit));
+    return edgeKey[slot] == -1 ? -1 : edgeChild[slot];
+  }
+
+  /**
+   * @param sym   a symbol id
+   * @return      whether sym is matched through the lexicon
+   */
+  boolean contains(int sym) {
+    return root[sym] >= 0;
+  }
+
+  /**
+   * @param sym   a symbol id, for which contains(sym) is true
+   * @return      the root node of the symbol's entries
+   */
+  int root(int sym) {
+    return root[sym];
+  }
+
+  /**
+   * @return  whether the path to a node spells out a whole entry
+   */
+  boolean accepting(int node) {
+    return accepting[node];
+  }
+
+  /**
+   * Finds the longest entry of a symbol starting at a token
+   * @param sym   a symbol id, for which contains(sym) is true
+   * @param lits  the literal id of each token, or -1 for unknown tokens
+   * @param lo    the index of the first token to match
+   * @return      one more than the index of the last token matched, or -1
+   */
+  int longest(int sym, int[] lits, int lo) {
+    int best = -1;
+    for (int node = root[sym], i = lo; i < lits.length; i++) {
+      if ((node = child(node, lits[i])) < 0) break;
+      if (accepting[node]) best = i + 1;
+    }
+    return best;
+  }
+
+  /**
+   * Finds every entry of a symbol starting at a token
+   * @param sym   a symbol id, for which contains(sym) is true
+   * @param lits  the literal id of each token, or -1 for unknown tokens
+   * @param lo    the index of the first token to match
+   * @param ends  the list to which one more than the last index of each entry is added
+   */
+  void ends(int sym, int[] lits, int lo, IntList ends) {
+    for (int node = root[sym], i = lo; i < lits.length; i++) {
+      if ((node = child(node, lits[i])) < 0) break;
+      if (accepting[node]) ends.add(i + 1);
+    }
+  }
+
+}
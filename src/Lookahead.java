@@ -0,0 +1,388 @@
+/**
+ * Lookahead holds the nullable flags, FIRST sets and FOLLOW sets of the
+ * symbols of a Grammar, computed once when the grammar is compiled.
+ *
+ * A symbol is nullable if it can match no tokens at all. Its FIRST set is the
+ * literals that can begin a match of it, and its FOLLOW set the literals that
+ * can come right after it in a match of any symbol. Sets are stored as sorted
+ * literal ids; a set of more than LIMIT literals (such as the FIRST set of a
+ * large dictionary) is only recorded as being too large, and is never used
+ * to rule anything out.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+final class Lookahead {
+
+  static final int LIMIT = 256;
+
+  //bits of flags[s]
+  private static final int NULLABLE = 1;    //s can match no tokens
+  private static final int EMPTY_AT = 2;    //matching s may record an empty sub-match
+  private static final int FIRST_LARGE = 4; //the FIRST set of s is not stored
+  private static final int FOLLOW_LARGE = 8;
+
+  private final int[] flags;
+  //the sets of symbol s are first[firstStart[s]] to first[firstStart[s + 1] - 1],
+  //and follow[followStart[s]] to follow[followStart[s + 1] - 1]
+  final int[] firstStart, first;
+  final int[] followStart, follow;
+
+  /**
+   * Analyses a grammar
+   * @param g   the grammar, whose alternatives must already be compiled
+   */
+  Lookahead(Grammar g) {
+    int n = g.symbols.length;
+    flags = new int[n];
+    findNullable(g);
+    findEmptyAt(g);
+
+    //FIRST(s): the literals, and FIRST sets of the symbols, up to and
+    //including the first item of each alternative that is not nullable
+    IntList from = new IntList(), to = new IntList();
+    IntList litFrom = new IntList(), lit = new IntList();
+    for (int a = 0; a < g.altCount(); a++) {
+      int s = g.altSymbol[a];
+      for (int i = g.itemStart[a]; i < g.itemStart[a + 1]; i++) {
+        int item = g.items[i];
+        if (item < 0) {
+          litFrom.add(s);
+          lit.add(~item);
+          break;
+        }
+        from.add(s);
+        to.add(item);
+        if (!nullable(item)) break;
+      }
+    }
+    int[][] sets = solve(n, g.literals.length, from, to, litFrom, lit, new boolean[n]);
+    firstStart = new int[n + 1];
+    first = pack(sets, firstStart, FIRST_LARGE);
+
+    //FOLLOW(s): the FIRST sets of what can come after s in each alternative,
+    //and the FOLLOW set of the alternative's symbol if all of that is nullable
+    from.clear();
+    to.clear();
+    litFrom.clear();
+    lit.clear();
+    boolean[] large = new boolean[n];
+    for (int a = 0; a < g.altCount(); a++) {
+      for (int i = g.itemStart[a]; i < g.itemStart[a + 1]; i++) {
+        int s = g.items[i];
+        if (s < 0) continue;
+        int j = i + 1;
+        for (; j < g.itemStart[a + 1]; j++) {
+          int item = g.items[j];
+          if (item < 0) {
+            litFrom.add(s);
+            lit.add(~item);
+            break;
+          }
+          if (!firstKnown(item)) large[s] = true;
+          else
+            for (int k = firstStart[item]; k < firstStart[item + 1]; k++) {
+              litFrom.add(s);
+              lit.add(first[k]);
+            }
+          if (!nullable(item)) break;
+        }
+        if (j == g.itemStart[a + 1]) {
+          from.add(s);
+          to.add(g.altSymbol[a]);
+        }
+      }
+    }
+    //each repetition of a group can be followed by another
+    for (int s = 0; s < n; s++) {
+      if (!g.repeats[s]) continue;
+      if (!firstKnown(s)) large[s] = true;
+      else
+        for (int k = firstStart[s]; k < firstStart[s + 1]; k++) {
+          litFrom.add(s);
+          lit.add(first[k]);
+        }
+    }
+    sets = solve(n, g.literals.length, from, to, litFrom, lit, large);
+    followStart = new int[n + 1];
+    follow = pack(sets, followStart, FOLLOW_LARGE);
+  }
+
+  /**
+   * Reads the analysis written by write()
+   * @param in  a buffer positioned at the start of the analysis
+   */
+  Lookahead(ByteBuffer in) {
+    flags = Snapshot.readInts(in);
+    firstStart = Snapshot.readInts(in);
+    first = Snapshot.readInts(in);
+    followStart = Snapshot.readInts(in);
+    follow = Snapshot.readInts(in);
+  }
+
+  /**
+   * Writes the analysis, in the order read by Lookahead(ByteBuffer)
+   * @param out   the stream to write to
+   */
+  void write(DataOutputStream out) throws IOException {
+    Snapshot.writeInts(out, flags);
+    Snapshot.writeInts(out, firstStart);
+    Snapshot.writeInts(out, first);
+    Snapshot.writeInts(out, followStart);
+    Snapshot.writeInts(out, follow);
+  }
+
+  /**
+   * Marks every symbol that has an alternative of only nullable symbols,
+   * working back from the empty alternatives through the symbols' uses
+   */
+  private void findNullable(Grammar g) {
+    int n = g.symbols.length;
+    //the alternatives in which each symbol appears, once per appearance
+    IntList from = new IntList(), to = new IntList();
+    int[] pending = new int[g.altCount()];
+    IntList queue = new IntList();
+    for (int a = 0; a < g.altCount(); a++) {
+      pending[a] = g.itemStart[a + 1] - g.itemStart[a];
+      for (int i = g.itemStart[a]; i < g.itemStart[a + 1]; i++) {
+        if (g.items[i] < 0) {
+          pending[a] = -1; //a literal is never empty
+          break;
+        }
+      }
+      if (pending[a] > 0)
+        for (int i = g.itemStart[a]; i < g.itemStart[a + 1]; i++) {
+          from.add(g.items[i]);
+          to.add(a);
+        }
+      if (pending[a] == 0 && mark(g.altSymbol[a], NULLABLE)) queue.add(g.altSymbol[a]);
+    }
+    for (int s = 0; s < n; s++) //a repetition may be of no items
+      if (g.repeats[s] && mark(s, NULLABLE)) queue.add(s);
+    int[] start = new int[n + 1];
+    int[] uses = csr(n, from, to, start);
+    for (int q = 0; q < queue.size; q++) {
+      int s = queue.a[q];
+      for (int k = start[s]; k < start[s + 1]; k++) {
+        int a = uses[k];
+        if (--pending[a] == 0 && mark(g.altSymbol[a], NULLABLE)) queue.add(g.altSymbol[a]);
+      }
+    }
+  }
+
+  /**
+   * Marks every symbol with an alternative whose first item is a nullable
+   * symbol, or a symbol so marked: matching it records empty sub-matches
+   * even where none of its alternatives can begin with the current token
+   */
+  private void findEmptyAt(Grammar g) {
+    int n = g.symbols.length;
+    IntList from = new IntList(), to = new IntList(), queue = new IntList();
+    for (int a = 0; a < g.altCount(); a++) {
+      if (g.itemStart[a] == g.itemStart[a + 1]) continue;
+      int item = g.items[g.itemStart[a]], s = g.altSymbol[a];
+      if (item < 0) continue;
+      from.add(item);
+      to.add(s);
+      if (nullable(item) && mark(s, EMPTY_AT)) queue.add(s);
+    }
+    int[] start = new int[n + 1];
+    int[] users = csr(n, from, to, start);
+    for (int q = 0; q < queue.size; q++) {
+      int s = queue.a[q];
+      for (int k = start[s]; k < start[s + 1]; k++)
+        if (mark(users[k], EMPTY_AT)) queue.add(users[k]);
+    }
+  }
+
+  /**
+   * @return  whether the flag was newly set
+   */
+  private boolean mark(int s, int flag) {
+    if ((flags[s] & flag) != 0) return false;
+    flags[s] |= flag;
+    return true;
+  }
+
+  /**
+   * Groups the pairs (from[i], to[i]) by their first element
+   * @param n       the number of distinct first elements
+   * @param start   filled with the offset of each first element's group (+1)
+   * @return        the second elements, grouped by first, in their original order
+   */
+  private static int[] csr(int n, IntList from, IntList to, int[] start) {
+    for (int i = 0; i < from.size; i++) start[from.a[i] + 1]++;
+    for (int s = 0; s < n; s++) start[s + 1] += start[s];
+    int[] out = new int[from.size], next = Arrays.copyOf(start, n);
+    for (int i = 0; i < from.size; i++) out[next[from.a[i]]++] = to.a[i];
+    return out;
+  }
+
+  /**
+   * Finds the smallest sets such that each symbol's set holds its own literals
+   * and the sets of the symbols it has edges to. The strongly connected
+   * components of the edges share one set, and are solved in the order found
+   * by Tarjan's algorithm, in which every component comes after those it has
+   * edges to.
+   * @param n         the number of symbols
+   * @param lits      the number of literals
+   * @param large     the symbols whose sets are known to be too large
+   * @return          the sorted set of each symbol, or null if it is too large
+   */
+  private static int[][] solve(int n, int lits, IntList from, IntList to,
+                               IntList litFrom, IntList lit, boolean[] large) {
+    int[] edgeStart = new int[n + 1], litStart = new int[n + 1];
+    int[] edges = csr(n, from, to, edgeStart), own = csr(n, litFrom, lit, litStart);
+    int[][] sets = new int[n][];
+
+    int[] index = new int[n], low = new int[n], next = new int[n], comp = new int[n];
+    int[] stack = new int[n], call = new int[n];
+    boolean[] onStack = new boolean[n];
+    Arrays.fill(index, -1);
+    int[] stamp = new int[lits];
+    int counter = 0, sp = 0, mark = 0;
+    IntList set = new IntList();
+    for (int root = 0; root < n; root++) {
+      if (index[root] >= 0) continue;
+      int depth = 0;
+      call[depth++] = root;
+      index[root] = low[root] = counter++;
+      next[root] = edgeStart[root];
+      stack[sp++] = root;
+      onStack[root] = true;
+      while (depth > 0) {
+        int v = call[depth - 1];
+        if (next[v] < edgeStart[v + 1]) {
+          int w = edges[next[v]++];
+          if (index[w] < 0) {
+            index[w] = low[w] = counter++;
+            next[w] = edgeStart[w];
+            stack[sp++] = w;
+            onStack[w] = true;
+            call[depth++] = w;
+          } else if (onStack[w]) {
+            low[v] = Math.min(low[v], index[w]);
+          }
+          continue;
+        }
+        depth--;
+        if (depth > 0) low[call[depth - 1]] = Math.min(low[call[depth - 1]], low[v]);
+        if (low[v] != index[v]) continue;
+
+        //v is the root of a component: pop it and solve its set
+        int top = sp;
+        do {
+          onStack[stack[--sp]] = false;
+          comp[stack[sp]] = v;
+        } while (stack[sp] != v);
+        boolean big = false;
+        mark++;
+        set.clear();
+        for (int m = sp; m < top && !big; m++) {
+          int s = stack[m];
+          big = large[s];
+          for (int k = litStart[s]; k < litStart[s + 1] && !big; k++)
+            big = add(own[k], stamp, mark, set);
+          for (int k = edgeStart[s]; k < edgeStart[s + 1] && !big; k++) {
+            int w = edges[k];
+            if (comp[w] == v) continue;
+            if (large[w]) big = true;
+            else for (int l : sets[w]) if (big = add(l, stamp, mark, set)) break;
+          }
+        }
+        int[] solved = null;
+        if (!big) {
+          solved = Arrays.copyOf(set.a, set.size);
+          Arrays.sort(solved);
+        }
+        for (int m = sp; m < top; m++) {
+          sets[stack[m]] = solved;
+          large[stack[m]] = big;
+        }
+      }
+    }
+    return sets;
+  }
+
+  /**
+   * Adds a literal to a set being solved, unless it has been added already
+   * @return  whether the set has become too large
+   */
+  private static boolean add(int l, int[] stamp, int mark, IntList set) {
+    if (stamp[l] == mark) return false;
+    stamp[l] = mark;
+    set.add(l);
+    return set.size > LIMIT;
+  }
+
+  /**
+   * Lays out solved sets contiguously, flagging those that are too large
+   * @param start   filled with the offset of each symbol's set (+1)
+   * @return        the concatenated sets
+   */
+  private int[] pack(int[][] sets, int[] start, int flag) {
+    int total = 0;
+    for (int s = 0; s < sets.length; s++) {
+      start[s] = total;
+      if (sets[s] == null) flags[s] |= flag;
+      else total += sets[s].length;
+    }
+    start[sets.length] = total;
+    int[] out = new int[total];
+    for (int s = 0; s < sets.length; s++)
+      if (sets[s] != null) System.arraycopy(sets[s], 0, out, start[s], sets[s].length);
+    return out;
+  }
+
+  /**
+   * @return  whether symbol s can match no tokens at all
+   */
+  boolean nullable(int s) {
+    return (flags[s] & NULLABLE) != 0;
+  }
+
+  /**
+   * @return  whether matching symbol s may record an empty sub-match, even
+   *          at a token that none of its alternatives can begin with
+   */
+  boolean emptyAt(int s) {
+    return (flags[s] & EMPTY_AT) != 0;
+  }
+
+  /**
+   * @return  whether the FIRST set of symbol s is stored
+   */
+  boolean firstKnown(int s) {
+    return (flags[s] & FIRST_LARGE) == 0;
+  }
+
+  /**
+   * @return  whether the FOLLOW set of symbol s is stored
+   */
+  boolean followKnown(int s) {
+    return (flags[s] & FOLLOW_LARGE) == 0;
+  }
+
+  /**
+   * @return  the sorted literal ids that can begin symbol s, or null if there
+   *          are too many to be stored
+   */
+  int[] firstSet(int s) {
+    return firstKnown(s) ? Arrays.copyOfRange(first, firstStart[s], firstStart[s + 1]) : null;
+  }
+
+  /**
+   * @return  the sorted literal ids that can follow symbol s, or null if there
+   *          are too many to be stored
+   */
+  int[] followSet(int s) {
+    return followKnown(s) ? Arrays.copyOfRange(follow, followStart[s], followStart[s + 1]) : null;
+  }
+
+}
@@ -119,7 +119,12 @@ public class Main {
     sidepanel2.add(em.promptSymbols);
     sidepanel2.add(em.optionsSymbols);
     sidepanel2.add(em.step3);
-    sidepanel2.add(em.analyzeButton);
+    JPanel analyzePanel = new JPanel();
+    analyzePanel.setOpaque(false);
+    analyzePanel.setLayout(new GridLayout(1, 2, 5, 5));
+    analyzePanel.add(em.analyzeButton);
+    analyzePanel.add(em.cancelButton);
+    sidepanel2.add(analyzePanel);
     c.fill = GridBagConstraints.BOTH;
     c.gridwidth = 1;
     c.gridheight = 1;
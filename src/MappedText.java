@@ -0,0 +1,213 @@
+/**
+ * MappedText is the UTF-8 text of a file as a CharSequence, to be matched
+ * without ever being read into memory as a whole.
+ *
+ * The file is memory-mapped, and decoded in blocks of BLOCK bytes, each
+ * ending on a character boundary. Decoded blocks are kept in a cache of
+ * WINDOWS windows, so a tokenizer advancing through the text decodes each
+ * block once, and looking back at a token found earlier decodes only its
+ * block again. Where each block starts, in bytes and in characters, is found
+ * by a first pass over the file when it is opened, which keeps nothing else.
+ * Resident memory is thus the cached windows and one entry per block,
+ * besides the pages of the file the operating system keeps mapped.
+ *
+ * As CharSequence is indexed by int, one text holds at most
+ * Integer.MAX_VALUE characters: a larger file is to be opened a byte range
+ * at a time. Malformed input is decoded as U+FFFD, as by new String().
+ *
+ * A MappedText keeps its current window without locking, and so is not to
+ * be read by two threads at once: copy() gives another thread its own.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class MappedText implements CharSequence {
+
+  static final int BLOCK = 1 << 16;  //bytes decoded at a time
+  static final int WINDOWS = 4;      //decoded blocks kept
+  //bytes mapped at a time, with a block of overlap so no block straddles two
+  private static final long REGION = 1L << 30;
+
+  private final String name;
+  private final ByteBuffer[] regions;
+  private final int blocks;
+  private final long[] byteStart; //of each block, relative to from, and of the end
+  private final int[] charStart;  //of each block, and of the end
+
+  private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  //the cached windows: the block each holds, or -1, and their characters
+  private final int[] cached = new int[WINDOWS];
+  private final char[][] windows = new char[WINDOWS][];
+  private int victim; //the window to be replaced next
+  //the current window, for charAt() to read without a lookup
+  private char[] window = new char[0];
+  private int windowStart, windowEnd;
+
+  /**
+   * Opens a whole file
+   * @param f   a UTF-8 text file
+   */
+  public MappedText(File f) throws Exception {
+    this(f, 0, f.length());
+  }
+
+  /**
+   * Opens a byte range of a file, which should begin and end between characters
+   * @param f     a UTF-8 text file
+   * @param from  offset in the file of the first byte of the text
+   * @param to    offset in the file after the last byte of the text
+   */
+  public MappedText(File f, long from, long to) throws Exception {
+    name = f.getName();
+    long size = to - from;
+    try {
+      RandomAccessFile in = new RandomAccessFile(f, "r");
+      try { //the mappings stay valid once the channel is closed
+        FileChannel ch = in.getChannel();
+        regions = new ByteBuffer[(int)((size + REGION - 1) / REGION)];
+        for (int r = 0; r < regions.length; r++) {
+          long lo = r * REGION, hi = Math.min(size, lo + REGION + BLOCK);
+          regions[r] = ch.map(FileChannel.MapMode.READ_ONLY, from + lo, hi - lo);
+        }
+      } finally {
+        in.close();
+      }
+    } catch (Exception e) {
+      throw new Exception("Error loading text file.\tCannot map file: " + name);
+    }
+    //find where each block starts, counting its characters
+    long[] bytes = new long[(int)(size / BLOCK) + 2];
+    int[] chars = new int[bytes.length];
+    CharBuffer scratch = CharBuffer.allocate(BLOCK);
+    int b = 0;
+    for (long total = 0; bytes[b] < size; b++) {
+      if (b + 1 == bytes.length) { //blocks may end up to 3 bytes early
+        bytes = Arrays.copyOf(bytes, b + 8);
+        chars = Arrays.copyOf(chars, b + 8);
+      }
+      long end = Math.min(size, bytes[b] + BLOCK);
+      //no character split between blocks
+      while (end < size && end > bytes[b] + BLOCK - 4 && (byteAt(end) & 0xC0) == 0x80) end--;
+      bytes[b + 1] = end;
+      scratch.clear();
+      decode(bytes[b], end, scratch);
+      total += scratch.position();
+      if (total > Integer.MAX_VALUE)
+        throw new Exception("Error: " + name + " has more than " + Integer.MAX_VALUE +
+                            " characters. Open it a byte range at a time.");
+      chars[b + 1] = (int)total;
+    }
+    blocks = b;
+    byteStart = Arrays.copyOf(bytes, b + 1);
+    charStart = Arrays.copyOf(chars, b + 1);
+    Arrays.fill(cached, -1);
+  }
+
+  /**
+   * Constructor of a copy, sharing the mapping and blocks of another text
+   */
+  private MappedText(MappedText t) {
+    name = t.name;
+    regions = t.regions;
+    blocks = t.blocks;
+    byteStart = t.byteStart;
+    charStart = t.charStart;
+    Arrays.fill(cached, -1);
+  }
+
+  /**
+   * @return  the same text with windows of its own, for another thread to read
+   */
+  public MappedText copy() {
+    return new MappedText(this);
+  }
+
+  private byte byteAt(long i) {
+    return regions[(int)(i / REGION)].get((int)(i % REGION));
+  }
+
+  /**
+   * Decodes the bytes [lo, hi) of a block, appending their characters to out
+   */
+  private void decode(long lo, long hi, CharBuffer out) {
+    ByteBuffer in = regions[(int)(lo / REGION)].duplicate();
+    int at = (int)(lo % REGION);
+    in.limit(at + (int)(hi - lo)).position(at);
+    decoder.reset();
+    decoder.decode(in, out, true);
+    decoder.flush(out);
+  }
+
+  public int length() {
+    return charStart[blocks];
+  }
+
+  public char charAt(int i) {
+    if (i >= windowStart && i < windowEnd) return window[i - windowStart];
+    if (i < 0 || i >= length()) throw new IndexOutOfBoundsException("index " + i + ", length " + length());
+    //the block holding character i
+    int lo = 0, hi = blocks - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (charStart[mid] <= i) lo = mid;
+      else hi = mid - 1;
+    }
+    load(lo);
+    return window[i - windowStart];
+  }
+
+  /**
+   * Makes a block the current window, decoding it unless it is cached
+   */
+  private void load(int b) {
+    int w = 0;
+    while (w < WINDOWS && cached[w] != b) w++;
+    if (w == WINDOWS) {
+      w = victim;
+      victim = (victim + 1) % WINDOWS;
+      int n = charStart[b + 1] - charStart[b];
+      if (windows[w] == null || windows[w].length < n) windows[w] = new char[Math.max(n, BLOCK)];
+      decode(byteStart[b], byteStart[b + 1], CharBuffer.wrap(windows[w]));
+      cached[w] = b;
+    }
+    window = windows[w];
+    windowStart = charStart[b];
+    windowEnd = charStart[b + 1];
+  }
+
+  public CharSequence subSequence(int start, int end) {
+    if (start < 0 || end > length() || start > end)
+      throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length());
+    StringBuilder sb = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) sb.append(charAt(i));
+    return sb.toString();
+  }
+
+  /**
+   * @return  the whole text, which is then held in memory as a String
+   */
+  public String toString() {
+    return subSequence(0, length()).toString();
+  }
+
+  /**
+   * @return  the name of the file
+   */
+  public String getName() {
+    return name;
+  }
+
+}
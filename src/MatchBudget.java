@@ -0,0 +1,129 @@
+/**
+ * MatchBudget limits the work a single match may do: the number of steps,
+ * the wall time, the recursion depth, the number of sub-matches recorded,
+ * and an estimate of the memory used by the match's tables.
+ *
+ * Steps are counted on every call, but the time, result and memory limits
+ * (and any MatchProgress) are only checked every checkInterval steps, so
+ * the checks cost next to nothing. When a limit is reached the match stops
+ * and returns what it found so far, with the reason it stopped.
+ *
+ * Budgets are immutable: start from INTERACTIVE or BATCH and derive others
+ * with the with...() methods.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+public final class MatchBudget {
+
+  private static final long UNLIMITED = Long.MAX_VALUE;
+
+  /** For matches a user is waiting on: up to 2 seconds and a depth of 2000 */
+  public static final MatchBudget INTERACTIVE =
+      new MatchBudget(UNLIMITED, 2000L * 1000000L, 2000, Integer.MAX_VALUE, UNLIMITED, 256);
+
+  /** For corpus runs, where one slow document must not hold up the rest */
+  public static final MatchBudget BATCH =
+      new MatchBudget(10000000L, 250L * 1000000L, 2000, 100000, 64L << 20, 1024);
+
+  final long maxSteps;     //calls of the matcher's inner step
+  final long maxTime;      //nanoseconds
+  final int maxDepth;      //recursion depth of the descent matcher
+  final int maxResults;    //distinct sub-matches recorded
+  final long maxMemory;    //estimated bytes of the match's tables
+  final int checkInterval; //steps between checks of the other limits
+
+  private MatchBudget(long maxSteps, long maxTime, int maxDepth, int maxResults,
+                      long maxMemory, int checkInterval) {
+    this.maxSteps = maxSteps;
+    this.maxTime = maxTime;
+    this.maxDepth = maxDepth;
+    this.maxResults = maxResults;
+    this.maxMemory = maxMemory;
+    this.checkInterval = checkInterval;
+  }
+
+  /**
+   * @param steps   the maximum number of steps, or Long.MAX_VALUE for no limit
+   * @return        a copy of this budget with the given step limit
+   */
+  public MatchBudget withMaxSteps(long steps) {
+    return new MatchBudget(steps, maxTime, maxDepth, maxResults, maxMemory, checkInterval);
+  }
+
+  /**
+   * @param millis  the maximum wall time in milliseconds
+   * @return        a copy of this budget with the given time limit
+   */
+  public MatchBudget withMaxTime(long millis) {
+    return new MatchBudget(maxSteps, millis * 1000000L, maxDepth, maxResults, maxMemory, checkInterval);
+  }
+
+  /**
+   * @param depth   the maximum recursion depth of the descent matcher
+   * @return        a copy of this budget with the given depth limit
+   */
+  public MatchBudget withMaxDepth(int depth) {
+    return new MatchBudget(maxSteps, maxTime, depth, maxResults, maxMemory, checkInterval);
+  }
+
+  /**
+   * @param results   the maximum number of distinct sub-matches
+   * @return          a copy of this budget with the given result limit
+   */
+  public MatchBudget withMaxResults(int results) {
+    return new MatchBudget(maxSteps, maxTime, maxDepth, results, maxMemory, checkInterval);
+  }
+
+  /**
+   * @param bytes   the maximum estimated memory of the match's tables
+   * @return        a copy of this budget with the given memory limit
+   */
+  public MatchBudget withMaxMemory(long bytes) {
+    return new MatchBudget(maxSteps, maxTime, maxDepth, maxResults, bytes, checkInterval);
+  }
+
+  /**
+   * @param steps   the number of steps between checks of the time, result
+   *                and memory limits, and of cancellation
+   * @return        a copy of this budget with the given check interval
+   */
+  public MatchBudget withCheckInterval(int steps) {
+    if (steps < 1) throw new IllegalArgumentException("Check interval must be positive.");
+    return new MatchBudget(maxSteps, maxTime, maxDepth, maxResults, maxMemory, steps);
+  }
+
+  /**
+   * @param steps   the steps taken so far
+   * @return        the step count at which the limits should next be checked
+   */
+  long nextCheck(long steps) {
+    long left = maxSteps - steps;
+    return steps + (left < checkInterval ? left + 1 : checkInterval);
+  }
+
+  /**
+   * Checks every limit but the depth, publishing progress at the same time
+   * @param steps       the steps taken so far
+   * @param startTime   System.nanoTime() when the match started
+   * @param position    the furthest token reached
+   * @param result      the sub-matches recorded so far
+   * @param bytes       the estimated memory of the matcher's own tables
+   * @param progress    to which progress is published, or null
+   * @return            the reason to stop, or null to go on
+   */
+  MatchResult.Stop check(long steps, long startTime, int position, MatchResult result,
+                         long bytes, MatchProgress progress) {
+    if (progress != null) {
+      progress.update(position, result.size());
+      if (progress.isCancelled()) return MatchResult.Stop.CANCELLED;
+    }
+    if (steps > maxSteps) return MatchResult.Stop.STEPS;
+    if (System.nanoTime() - startTime > maxTime) return MatchResult.Stop.TIME;
+    if (result.size() > maxResults) return MatchResult.Stop.RESULTS;
+    if (bytes + result.bytes() > maxMemory) return MatchResult.Stop.MEMORY;
+    return null;
+  }
+
+}
@@ -0,0 +1,445 @@
+/**
+ * MatchContext holds the mutable state of one recursive descent matching
+ * attempt over a Grammar: the input, the memo table, the budget spent so
+ * far and the result being recorded. The Grammar itself is never modified, so any
+ * number of contexts may match against the same Grammar concurrently.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.util.Arrays;
+
+final class MatchContext {
+
+  private final Grammar grammar;
+  //read by the methods of the compiled matcher, too
+  final int[] lits; //literal id of each token, or -1 if no definition uses it
+  final MatchResult result;
+  private final CompiledMatcher compiled; //may be null
+  private final MatchBudget budget;
+  private final MatchProgress progress; //may be null
+  private long startTime; //System.nanoTime() when the search started
+  private long steps, nextCheck; //calls of matchSymbol(), and when to next check the budget
+  private int furthest; //the furthest token reached
+  private long memoBytes; //estimated size of the memo table
+  //the limit that stopped the whole search, or null, and whether any
+  //branch was cut short by the depth limit (which stops only that branch)
+  MatchResult.Stop stopped;
+  boolean recursedTooDeep;
+
+  //packrat memoization - memo[symbol id][pos] is the number of tokens of the
+  //symbol's match starting at token pos, -1 if it failed, or UNKNOWN if not
+  //yet attempted; counts rather than end indices stay the same when a row is
+  //shifted by IncrementalMatch
+  static final int UNKNOWN = Integer.MIN_VALUE;
+  private final int[][] memo;
+  long memoHits, memoMisses;
+  //for incremental matching (see IncrementalMatch), reach[symbol id][pos] is
+  //one more than the last token the memoized outcome depends on, less pos,
+  //or null if not kept; seen is the same, from 0, for the symbol being matched
+  private final int[][] reach;
+  private int seen;
+  //for incremental matching, the calls made by each memoized outcome, or
+  //null; made holds the calls of the outcomes being found, as pairs of
+  //symbol id and position, and visits those of memo hits being replayed
+  private final Calls calls;
+  private final IntList made = new IntList(), visits = new IntList();
+  //positions passed through by the repetitions being matched, to be memoized
+  private final IntList passed = new IntList();
+
+  /**
+   * Constructor
+   * @param g         the grammar to match with
+   * @param lits      literal id of each token, or -1 if no definition uses it
+   * @param result    in which every sub-match is recorded
+   * @param memoize   whether to memoize (symbol, position) outcomes
+   * @param budget    the limits of the search
+   * @param progress  to which progress is published, or null
+   * @param compiled  the compiled matcher of g, or null to interpret g
+   */
+  MatchContext(Grammar g, int[] lits, MatchResult result, boolean memoize,
+               MatchBudget budget, MatchProgress progress, CompiledMatcher compiled) {
+    this(g, lits, result, memoize ? new int[g.symbols.length][] : null, null, null, budget, progress, compiled);
+  }
+
+  /**
+   * Constructor continuing from the memo table of an earlier match, whose
+   * outcomes that still hold for these tokens are kept
+   * @param memo    the memo table, of a row of at least lits.length + 1
+   *                outcomes or null for each symbol
+   * @param reach   for each outcome in memo, one more than the last token it
+   *                depends on, or null not to keep track
+   * @param calls   the calls made by each outcome in memo, to be replayed on
+   *                memo hits, or null not to keep track
+   */
+  MatchContext(Grammar g, int[] lits, MatchResult result, int[][] memo, int[][] reach, Calls calls,
+               MatchBudget budget, MatchProgress progress, CompiledMatcher compiled) {
+    this.grammar = g;
+    this.compiled = compiled;
+    this.lits = lits;
+    this.result = result;
+    this.budget = budget;
+    this.progress = progress;
+    this.memo = memo;
+    this.reach = reach;
+    this.calls = calls;
+    if (calls != null) calls.run++;
+    if (memo != null)
+      for (int[] ends : memo) if (ends != null) memoBytes += 4L * ends.length + 16;
+  }
+
+  /**
+   * Matches a symbol from the first token
+   * @param sym   id of the symbol to be matched
+   * @return      one more than the index up to where sym is matched in tokens
+   */
+  int run(int sym) {
+    startTime = System.nanoTime();
+    nextCheck = budget.nextCheck(0);
+    int id = match(sym, 0, 0);
+    result.stopped = stopped != null ? stopped : recursedTooDeep ? MatchResult.Stop.DEPTH : null;
+    result.steps = steps;
+    result.elapsed = System.nanoTime() - startTime;
+    result.memory = memoBytes + result.bytes();
+    return id;
+  }
+
+  /**
+   * Matches the definition of a symbol, consulting the memo table first
+   * @param sym     id of the symbol whose definition is to be matched
+   * @param lo      the index of the first element in tokens to start the matching
+   * @param depth   the current depth of the recursion, used to terminate early
+   * @return        one more than the index up to where sym is matched in tokens
+   */
+  int match(int sym, int lo, int depth) {
+    if (memo == null) return matchSymbol(sym, lo, depth);
+    int[] ends = memo[sym];
+    if (ends == null) {
+      ends = memo[sym] = new int[lits.length + 1];
+      Arrays.fill(ends, UNKNOWN);
+      memoBytes += 4L * ends.length + 16;
+      if (reach != null) reach[sym] = new int[lits.length + 1];
+      if (calls != null) calls.row(sym, lits.length + 1);
+    }
+    if (ends[lo] != UNKNOWN) {
+      memoHits++;
+      if (reach != null) see(lo + reach[sym][lo] - 1);
+      if (calls != null) replay(sym, lo);
+      return ends[lo] < 0 ? ends[lo] : lo + ends[lo];
+    }
+    memoMisses++;
+    int outer = seen, mark = made.size;
+    seen = 0;
+    int id = matchSymbol(sym, lo, depth);
+    //outcomes cut short by the limits or by cancellation are not final
+    if (!recursedTooDeep && stopped == null) {
+      ends[lo] = id < 0 ? id : id - lo;
+      if (reach != null) reach[sym][lo] = seen - lo;
+      if (calls != null) calls.record(sym, lo, made, mark, made.size);
+    }
+    seen = Math.max(seen, outer);
+    if (calls != null) {
+      made.size = mark;
+      call(sym, lo);
+    }
+    return id;
+  }
+
+  /**
+   * Records the call of a memoized outcome, and again the sub-matches found
+   * below it when it was found, unless they were already recorded by this
+   * run, as a match without the outcome memoized would have recorded them
+   */
+  private void replay(int sym, int lo) {
+    call(sym, lo);
+    if (!calls.visit(sym, lo)) return;
+    visits.add(sym);
+    visits.add(lo);
+    while (visits.size > 0) {
+      int pos = visits.a[--visits.size], s = visits.a[--visits.size];
+      int r = calls.at[s][pos], n = calls.list.a[r];
+      for (int k = r + 1; k <= r + 2 * n; k += 2) {
+        int c = calls.list.a[k], i = pos + calls.list.a[k + 1], end = memo[c][i];
+        if (c < grammar.declared && end >= 0) result.add(c, i, i + end);
+        if (calls.visit(c, i)) {
+          visits.add(c);
+          visits.add(i);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds a call to those of the outcome being found, unless it recorded
+   * nothing and made no calls, so that replaying it would do nothing
+   */
+  private void call(int sym, int lo) {
+    if (calls.at[sym][lo] == 0 && (sym >= grammar.declared || memo[sym][lo] < 0)) return;
+    made.add(sym);
+    made.add(lo);
+  }
+
+  /**
+   * Notes that the outcome being found depends on token i, or on where the
+   * tokens end if i is lits.length
+   */
+  private void see(int i) {
+    if (i >= seen) seen = i + 1;
+  }
+
+  /**
+   * Recursive helper function for matching the alternatives of a symbol
+   * @param sym     id of the symbol whose definition is to be matched
+   * @param lo      the index of the first element in tokens to start the matching
+   * @param depth   the current depth of the recursion, used to terminate early
+   * @return        one more than the index up to where the longest alternative is matched
+   */
+  private int matchSymbol(int sym, int lo, int depth) {
+    see(lo);
+    if (lo == lits.length) return lo;
+    if (stopped != null) return -1;
+    if (depth > budget.maxDepth) {
+      recursedTooDeep = true;
+      return -1;
+    }
+    if (lo > furthest) furthest = lo;
+    //the other limits are only checked every so many steps
+    if (++steps >= nextCheck) {
+      stopped = budget.check(steps, startTime, furthest, result, memoBytes, progress);
+      if (stopped != null) return -1;
+      nextCheck = budget.nextCheck(steps);
+    }
+    if (grammar.lexicon.contains(sym))
+      return reach == null ? grammar.lexicon.longest(sym, lits, lo) : longestEntry(sym, lo);
+    if (grammar.repeats[sym]) return matchRepeat(sym, lo, depth);
+    if (compiled != null) {
+      int id = compiled.matchSymbol(this, sym, lo, depth);
+      if (id != CompiledMatcher.UNCOMPILED) return id;
+    }
+    int best = -1;
+    //alternatives whose FIRST set lacks the current token would fail without
+    //recording anything, so only those that can begin with it, and those that
+    //may match empty, are tried
+    int slot = lits[lo] < 0 ? -1 : grammar.dispatch(sym, lits[lo]);
+    if (slot >= 0)
+      for (int i = grammar.slotStart[slot]; i < grammar.slotEnd[slot]; i++)
+        best = Math.max(best, matchAlt(grammar.firstAlts[i], lo, depth + 1));
+    for (int i = grammar.otherStart[sym]; i < grammar.otherStart[sym + 1]; i++)
+      best = Math.max(best, matchAlt(grammar.otherAlts[i], lo, depth + 1));
+    return best;
+  }
+
+  /**
+   * Matches a group repeated any number of times by iterating over its body,
+   * so that long repetitions use up neither the depth limit nor the stack.
+   * Each iteration takes the longest match of the body, and the repetition
+   * ends where the body fails or matches nothing. The repetition ends at the
+   * same token from every position it passes through, so each of them is
+   * memoized too, and a later attempt from any of them returns at once.
+   * @param sym     id of a repeated group
+   * @param lo      the index of the first element in tokens to start the matching
+   * @param depth   the current depth of the recursion, which each iteration starts from
+   * @return        one more than the index up to where the repetition is matched
+   */
+  private int matchRepeat(int sym, int lo, int depth) {
+    int body = grammar.altStart[sym], mark = passed.size, first = made.size;
+    int[] ends = memo == null ? null : memo[sym];
+    int id = lo;
+    while (id < lits.length) {
+      see(id);
+      if (id > lo && ends != null && ends[id] != UNKNOWN) {
+        if (reach != null) see(id + reach[sym][id] - 1);
+        if (calls != null) replay(sym, id);
+        id += ends[id];
+        break;
+      }
+      if (id > lo) {
+        passed.add(id);
+        if (calls != null) made.add(-1); //the calls of another iteration follow
+      }
+      steps++;
+      int next = alt(body, id, depth + 1);
+      if (next <= id) break;
+      id = next;
+    }
+    see(id);
+    if (id > furthest) furthest = id;
+    if (ends != null && !recursedTooDeep && stopped == null)
+      for (int i = mark; i < passed.size; i++) {
+        ends[passed.a[i]] = id - passed.a[i];
+        if (reach != null) reach[sym][passed.a[i]] = seen - passed.a[i];
+      }
+    if (calls != null) chain(sym, mark, first);
+    passed.size = mark;
+    return id;
+  }
+
+  /**
+   * Records the calls of a repetition from each position it passed through
+   * as those of one iteration, followed by the call of the repetition from
+   * the next position, so that each position is recorded once
+   * @param first   where the calls of the repetition begin in made, those of
+   *                each iteration after the first following a mark of -1
+   */
+  private void chain(int sym, int mark, int first) {
+    for (int i = made.size - 1, k = passed.size; i >= first && k > mark; i--) {
+      if (made.a[i] >= 0) continue;
+      int pos = passed.a[--k];
+      if (!recursedTooDeep && stopped == null) calls.record(sym, pos, made, i + 1, made.size);
+      made.a[i] = sym; //the call of the next iteration, in place of the mark
+      made.size = i + 1;
+      made.add(pos);
+    }
+  }
+
+  /**
+   * Lexicon.longest(), noting every token the trie is walked over
+   */
+  private int longestEntry(int sym, int lo) {
+    int best = -1;
+    for (int node = grammar.lexicon.root(sym), i = lo; ; i++) {
+      see(i);
+      if (i == lits.length || (node = grammar.lexicon.child(node, lits[i])) < 0) break;
+      if (grammar.lexicon.accepting(node)) best = i + 1;
+    }
+    return best;
+  }
+
+  /**
+   * Matches the body of a repeated group with its compiled method, if it has one
+   */
+  private int alt(int alt, int lo, int depth) {
+    if (compiled != null) {
+      int id = compiled.matchAlt(this, alt, lo, depth);
+      if (id != CompiledMatcher.UNCOMPILED) return id;
+    }
+    return matchAlt(alt, lo, depth);
+  }
+
+  /**
+   * Recursive helper function for matching a single alternative
+   * @param alt     id of the alternative to attempt to match
+   * @param lo      the index of the first element in tokens to start the matching
+   * @param depth   the current depth of the recursion, used to terminate early
+   * @return        one more than the index up to where alt is matched in tokens
+   */
+  private int matchAlt(int alt, int lo, int depth) {
+    int id = lo;
+    for (int i = grammar.itemStart[alt]; i < grammar.itemStart[alt + 1]; i++) {
+      see(id);
+      //no tokens are left, which only groups that may be empty can match
+      if (id >= lits.length) return grammar.emptyFrom(alt, i) ? id : -1;
+      int item = grammar.items[i];
+      if (item < 0) { //literal
+        if (lits[id] != ~item) return -1;
+        id++; //move to next token
+      } else { //try to match the symbol
+        int prev = id;
+        id = match(item, id, depth + 1);
+        if (id < 0) return id;
+        if (item < grammar.declared) result.add(item, prev, id);
+        see(id);
+        if (id >= lits.length) return id;
+      }
+    }
+    return id;
+  }
+
+  /**
+   * The calls made by each memoized outcome while it was found, which are
+   * kept with the memo table by IncrementalMatch. A memo hit replays the
+   * calls below it, so that a match continuing from an earlier memo table
+   * records the same sub-matches as a match from scratch.
+   */
+  static final class Calls {
+
+    //at[symbol id][pos] is where the calls of the outcome are in list: their
+    //number, then the symbol id of each and its position relative to pos,
+    //which stays the same when the outcome is moved; 0 for no calls
+    int[][] at;
+    IntList list = new IntList();
+    int garbage; //entries of list no longer referred to
+    //stamp[symbol id][pos] is the last run in which the outcome was reached
+    int[][] stamp;
+    int run;
+
+    /**
+     * Constructor
+     * @param symbols   the number of symbols of the grammar
+     */
+    Calls(int symbols) {
+      at = new int[symbols][];
+      stamp = new int[symbols][];
+      list.add(0); //the calls of the outcomes that made none
+    }
+
+    /**
+     * Adds the rows of a symbol's outcomes, of the given length
+     */
+    void row(int sym, int length) {
+      at[sym] = new int[length];
+      stamp[sym] = new int[length];
+    }
+
+    /**
+     * Records the calls of an outcome, which is thus reached by this run
+     * @param made    calls as pairs of symbol id and position
+     * @param from    index of the first call in made
+     * @param to      index after the last call in made
+     */
+    void record(int sym, int pos, IntList made, int from, int to) {
+      stamp[sym][pos] = run;
+      if (from == to) {
+        at[sym][pos] = 0;
+        return;
+      }
+      at[sym][pos] = list.size;
+      list.add((to - from) / 2);
+      for (int i = from; i < to; i += 2) {
+        list.add(made.a[i]);
+        list.add(made.a[i + 1] - pos);
+      }
+    }
+
+    /**
+     * Marks an outcome as reached by this run
+     * @return  whether it was not reached before
+     */
+    boolean visit(int sym, int pos) {
+      if (stamp[sym][pos] == run) return false;
+      stamp[sym][pos] = run;
+      return true;
+    }
+
+    /**
+     * @return  the number of entries of list held by the calls of an outcome
+     */
+    int size(int sym, int pos) {
+      int r = at[sym][pos];
+      return r == 0 ? 0 : 1 + 2 * list.a[r];
+    }
+
+    /**
+     * Copies the calls still referred to into a new list, once the entries
+     * no longer referred to outnumber them
+     */
+    void compact() {
+      if (2 * garbage <= list.size) return;
+      IntList old = list;
+      list = new IntList();
+      list.add(0);
+      for (int[] row : at) {
+        if (row == null) continue;
+        for (int i = 0; i < row.length; i++) {
+          int r = row[i];
+          if (r == 0) continue;
+          row[i] = list.size;
+          for (int k = r; k <= r + 2 * old.a[r]; k++) list.add(old.a[k]);
+        }
+      }
+      garbage = 0;
+    }
+  }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * MatchProgress lets another thread follow, and cancel, a match in progress.
+ *
+ * The matchers publish how far they have got whenever they check their
+ * MatchBudget, every few hundred steps, and check for cancellation at the
+ * same time, so reading the progress costs the matching thread almost
+ * nothing and a cancelled match stops promptly.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+public class MatchProgress {
+
+  private volatile boolean cancelled;
+  private volatile long startTime;
+  private volatile int tokens, position, matches;
+
+  /**
+   * Asks the match to stop as soon as it next checks its progress
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * @return  whether cancel() has been called
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * @return  the number of tokens in the text being matched
+   */
+  public int getTokens() {
+    return tokens;
+  }
+
+  /**
+   * @return  the furthest token the match has reached
+   */
+  public int getPosition() {
+    return position;
+  }
+
+  /**
+   * @return  the number of distinct sub-matches found so far
+   */
+  public int getMatches() {
+    return matches;
+  }
+
+  /**
+   * @return  the milliseconds since the match started, or 0 if it has not
+   */
+  public long getElapsedMillis() {
+    long start = startTime;
+    return start == 0 ? 0 : (System.nanoTime() - start) / 1000000;
+  }
+
+  /**
+   * Called by the matcher as it begins
+   * @param tokens  the number of tokens in the text
+   */
+  void start(int tokens) {
+    this.tokens = tokens;
+    this.startTime = System.nanoTime();
+  }
+
+  /**
+   * Called by the matcher every time it checks its budget
+   * @param position  the furthest token reached
+   * @param matches   the number of sub-matches found
+   */
+  void update(int position, int matches) {
+    if (position > this.position) this.position = position;
+    this.matches = matches;
+  }
+
+}
@@ -0,0 +1,365 @@
+/**
+ * The outcome of one matching attempt: whether the text matched, and every
+ * sub-match found along the way, regardless of matching success.
+ *
+ * Sub-matches are recorded as (symbol id, start, end) token spans in
+ * primitive arrays, each distinct span once, in the order they were found.
+ * Nothing is rendered to Strings until a consumer asks for it: tokens are
+ * kept as character offsets into the matched text, so spans can also be
+ * traced back to where they appear in it.
+ *
+ * A match that ran out of its MatchBudget, or was cancelled, still returns
+ * its result: isComplete() is then false, and getStopReason() tells why.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+public class MatchResult {
+
+  /**
+   * Reasons for a match to stop before its search was complete
+   */
+  public enum Stop { STEPS, TIME, DEPTH, RESULTS, MEMORY, CANCELLED };
+
+  private final Grammar grammar;
+  private final CharSequence text;
+  private final int[] bounds; //start of token i at 2i, end at 2i + 1
+  private final int tokens;
+  final Tokenizer tokenizer;
+  boolean matched;
+  long memoHits, memoMisses; //statistics of the recursive descent matcher
+  Stop stopped; //null if the search was complete
+  long steps, elapsed, memory; //statistics of the search: steps, nanoseconds, estimated bytes
+  ParseForest forest; //every parse of the text, if requested and matched
+
+  //the spans, as parallel arrays
+  private int[] sym = new int[16], start = new int[16], end = new int[16];
+  private int size;
+  //open-addressing set of span indices + 1 (0 if empty), to skip duplicates
+  private int[] table = new int[32];
+
+  /**
+   * Constructor
+   * @param g           the grammar whose symbols the spans refer to
+   * @param text        the matched text
+   * @param bounds      the start of token i at index 2i, and its end at 2i + 1
+   * @param tokens      the number of tokens
+   * @param tokenizer   the tokenizer that found the tokens
+   */
+  MatchResult(Grammar g, CharSequence text, int[] bounds, int tokens, Tokenizer tokenizer) {
+    this.grammar = g;
+    this.text = text;
+    this.bounds = bounds;
+    this.tokens = tokens;
+    this.tokenizer = tokenizer;
+  }
+
+  /**
+   * @return  a result with no spans yet, over the same tokens
+   */
+  MatchResult cleared() {
+    return new MatchResult(grammar, text, bounds, tokens, tokenizer);
+  }
+
+  /**
+   * Records that a symbol matched tokens [lo, hi), unless already recorded
+   * @param s   the symbol id
+   * @param lo  index of the first token matched, inclusive
+   * @param hi  index after the last token matched, exclusive
+   */
+  void add(int s, int lo, int hi) {
+    int mask = table.length - 1;
+    int slot = hash(s, lo, hi) & mask;
+    for (int i; (i = table[slot] - 1) >= 0; slot = (slot + 1) & mask)
+      if (sym[i] == s && start[i] == lo && end[i] == hi) return;
+    if (size == sym.length) {
+      sym = Arrays.copyOf(sym, size * 2);
+      start = Arrays.copyOf(start, size * 2);
+      end = Arrays.copyOf(end, size * 2);
+    }
+    sym[size] = s;
+    start[size] = lo;
+    end[size] = hi;
+    table[slot] = ++size;
+    if (2 * size > table.length) rehash();
+  }
+
+  private static int hash(int s, int lo, int hi) {
+    int h = (s * 31 + lo) * 0x9E3779B9 + hi;
+    return h ^ (h >>> 16);
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hash(sym[i], start[i], end[i]) & mask;
+      while (table[slot] != 0) slot = (slot + 1) & mask;
+      table[slot] = i + 1;
+    }
+  }
+
+  /**
+   * Orders the spans of a result that holds the spans of a single symbol
+   * by their start, longest first, as found by a scan
+   * @param overlapping   whether every span is kept, or only the longest
+   *                      span at the leftmost start, then from where it ends
+   */
+  void sortSpans(boolean overlapping) {
+    if (size == 0) return;
+    //longer spans sort first at the same start
+    long[] keys = new long[size];
+    for (int i = 0; i < size; i++)
+      keys[i] = ((long)start[i] << 32) | (Integer.MAX_VALUE - end[i]);
+    Arrays.sort(keys);
+    int kept = 0, last = -1;
+    for (int i = 0; i < keys.length; i++) {
+      int lo = (int)(keys[i] >>> 32), hi = Integer.MAX_VALUE - (int)keys[i];
+      if (!overlapping && lo < last) continue;
+      start[kept] = lo;
+      end[kept++] = last = hi;
+    }
+    Arrays.fill(sym, 1, kept, sym[0]);
+    size = kept;
+    Arrays.fill(table, 0);
+    int mask = table.length - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hash(sym[i], start[i], end[i]) & mask;
+      while (table[slot] != 0) slot = (slot + 1) & mask;
+      table[slot] = i + 1;
+    }
+  }
+
+  /**
+   * @return  whether the whole text matched the symbol
+   */
+  public boolean isMatched() {
+    return matched;
+  }
+
+  /**
+   * @return  every parse of the text, if the text matched and a forest was
+   *          requested with BackusNaur.setForest(), or else null
+   */
+  public ParseForest getForest() {
+    return forest;
+  }
+
+  /**
+   * @return  whether the search ran to completion, so that the result is final
+   */
+  public boolean isComplete() {
+    return stopped == null;
+  }
+
+  /**
+   * @return  the reason the search stopped early, or null if it was complete
+   */
+  public Stop getStopReason() {
+    return stopped;
+  }
+
+  /**
+   * @return  a sentence describing why the search stopped early, or null
+   */
+  public String getStopMessage() {
+    if (stopped == null) return null;
+    switch (stopped) {
+      case STEPS: return "Search took too many steps and was terminated early.";
+      case TIME: return "Search took too long and was terminated early.";
+      case DEPTH: return "Some searches terminated early due to recursion too deep.";
+      case RESULTS: return "Search found too many sub-matches and was terminated early.";
+      case MEMORY: return "Search used too much memory and was terminated early.";
+      default: return "Search was cancelled.";
+    }
+  }
+
+  /**
+   * @return  the number of steps the matcher took
+   */
+  public long getSteps() {
+    return steps;
+  }
+
+  /**
+   * @return  the time the match took, in nanoseconds
+   */
+  public long getElapsedNanos() {
+    return elapsed;
+  }
+
+  /**
+   * @return  the estimated peak memory of the match's tables, in bytes
+   */
+  public long getMemoryEstimate() {
+    return memory;
+  }
+
+  /**
+   * @return  the estimated memory of the recorded sub-matches, in bytes
+   */
+  long bytes() {
+    return 12L * sym.length + 4L * table.length;
+  }
+
+  /**
+   * @return  the number of symbol matches answered from the memo table
+   */
+  public long getMemoHits() {
+    return memoHits;
+  }
+
+  /**
+   * @return  the number of symbol matches that had to be computed
+   */
+  public long getMemoMisses() {
+    return memoMisses;
+  }
+
+  /**
+   * @return  the number of distinct sub-matches
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return  the number of tokens in the matched text
+   */
+  public int tokenCount() {
+    return tokens;
+  }
+
+  /**
+   * @param i   index of a sub-match, less than size()
+   * @return    the name of the symbol that was matched
+   */
+  public String symbol(int i) {
+    return grammar.symbols[sym[i]];
+  }
+
+  /**
+   * @param i   index of a sub-match, less than size()
+   * @return    the index of the first token of the sub-match
+   */
+  public int start(int i) {
+    return start[i];
+  }
+
+  /**
+   * @param i   index of a sub-match, less than size()
+   * @return    one more than the index of the last token of the sub-match
+   */
+  public int end(int i) {
+    return end[i];
+  }
+
+  /**
+   * @param i   index of a token, less than tokenCount()
+   * @return    the token, as it appeared in the text but without punctuation
+   */
+  public String token(int i) {
+    return tokenizer.token(text, bounds[2 * i], bounds[2 * i + 1]);
+  }
+
+  /**
+   * @param i   index of a token, less than tokenCount()
+   * @return    the offset in the matched text of the first character of the token
+   */
+  public int tokenStart(int i) {
+    return bounds[2 * i];
+  }
+
+  /**
+   * @param i   index of a token, less than tokenCount()
+   * @return    the offset in the matched text after the last character of the token
+   */
+  public int tokenEnd(int i) {
+    return bounds[2 * i + 1];
+  }
+
+  /**
+   * @return  the matched text, into which tokenStart() and tokenEnd() point
+   */
+  public CharSequence getText() {
+    return text;
+  }
+
+  /**
+   * Renders a range of tokens as a String to be displayed in ResultFrame
+   * @param lo  lower bound of indices to consider, inclusive
+   * @param hi  upper bound of indices to consider, exclusive
+   * @return    the converted String
+   */
+  public String text(int lo, int hi) {
+    if (lo < 0 || hi > tokens) return "";
+    StringBuilder res = new StringBuilder("[ ");
+    for (int i = lo; i < hi; i++) res.append(token(i)).append(' ');
+    return res.append(']').toString();
+  }
+
+  /**
+   * @return  the number of symbols of the grammar, by which sub-matches are
+   *          grouped by orderBySymbol()
+   */
+  int symbolCount() {
+    return grammar.symbols.length;
+  }
+
+  /**
+   * Orders the sub-matches by symbol, in the order the symbols were declared,
+   * and the sub-matches of each symbol by start and then by end. Each key is
+   * sorted on by counting, so this takes time linear in the number of
+   * sub-matches and tokens.
+   * @param first   an array of symbolCount() + 1 entries, in which is stored
+   *                where the sub-matches of each symbol begin in the order
+   * @return        the indices of the sub-matches, in that order
+   */
+  int[] orderBySymbol(int[] first) {
+    int[] order = new int[size], tmp = new int[size];
+    for (int i = 0; i < size; i++) order[i] = i;
+    int[] counts = new int[tokens + 2];
+    sortBy(end, order, tmp, counts);
+    sortBy(start, order, tmp, counts);
+    Arrays.fill(first, 0);
+    sortBy(sym, order, tmp, first);
+    return order;
+  }
+
+  /**
+   * Stably sorts span indices by one of the span arrays
+   * @param counts  an array of more entries than any key, in which is left
+   *                where the spans of each key begin in the order
+   */
+  private void sortBy(int[] key, int[] order, int[] tmp, int[] counts) {
+    Arrays.fill(counts, 0);
+    for (int i = 0; i < size; i++) counts[key[order[i]] + 1]++;
+    for (int k = 1; k < counts.length; k++) counts[k] += counts[k - 1];
+    for (int i = 0; i < size; i++) tmp[counts[key[order[i]]]++] = order[i];
+    //counts[k] is now where key k + 1 begins
+    System.arraycopy(counts, 0, counts, 1, counts.length - 1);
+    counts[0] = 0;
+    System.arraycopy(tmp, 0, order, 0, size);
+  }
+
+  /**
+   * Renders every sub-match into a map
+   * @param m   map from symbol to its rendered matches, to which the sub-matches are added
+   */
+  public void addTo(HashMap<String, TreeSet<String>> m) {
+    for (int i = 0; i < size; i++) {
+      TreeSet<String> set = m.get(symbol(i));
+      if (set == null) {
+        set = new TreeSet<String>();
+        m.put(symbol(i), set);
+      }
+      set.add(text(start[i], end[i]));
+    }
+  }
+
+}
@@ -0,0 +1,402 @@
+/**
+ * ParseForest is a shared packed parse forest (SPPF): every parse of a
+ * matched text, with each sub-parse stored once however many parses share it.
+ *
+ * Nodes are numbered from 0 and are of three kinds:
+ *  - symbol nodes, for a symbol matching the tokens [start, end)
+ *  - intermediate nodes, for the first few items of an alternative
+ *  - token nodes, for a single token
+ * Each symbol or intermediate node has one or more packed alternatives,
+ * each a (left, right) pair of child nodes, either of which may be -1.
+ * A node with more than one packed alternative is where parses diverge.
+ * Symbols matched through the grammar's dictionary (Lexicon) are leaves.
+ *
+ * The forest has at most one node per (symbol or alternative prefix, start,
+ * end), so its size grows polynomially with the input, however many parses
+ * there are. Parses are only built as trees on request, one at a time.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+public class ParseForest {
+
+  //the label of a token node; a symbol node is labelled by its symbol id,
+  //and an intermediate node by its chart position p as -2 - p
+  static final int TOKEN = -1;
+
+  private final Grammar grammar;
+  private final MatchResult result; //for the tokens
+
+  private int[] label = new int[16], start = new int[16], end = new int[16];
+  private int size;
+  //open-addressing set of node indices + 1 (0 if empty), keyed by (label, start, end)
+  private int[] table = new int[32];
+
+  //the packed alternatives of node v are (left[k], right[k]) for k from
+  //packedStart[v] to packedStart[v + 1] - 1
+  private int[] packedStart = new int[17];
+  private final IntList left = new IntList(), right = new IntList();
+  private int expanded; //the number of nodes whose packed alternatives are complete
+
+  private BigInteger[] counts; //number of parses of each node, once counted
+  private boolean cyclic;      //whether some node is part of its own parses
+  private int[] choice;        //packed alternative of the shallowest parse of each node
+
+  /**
+   * Constructor for an empty forest, to be filled by the chart parser
+   * @param g       the grammar whose symbols the nodes refer to
+   * @param result  the result of the match, for its tokens
+   */
+  ParseForest(Grammar g, MatchResult result) {
+    this.grammar = g;
+    this.result = result;
+  }
+
+  /**
+   * Finds a node, adding it if it does not exist yet
+   * @return  the id of the node
+   */
+  int node(int l, int lo, int hi) {
+    int mask = table.length - 1;
+    int slot = hash(l, lo, hi) & mask;
+    for (int i; (i = table[slot] - 1) >= 0; slot = (slot + 1) & mask)
+      if (label[i] == l && start[i] == lo && end[i] == hi) return i;
+    if (size == label.length) {
+      label = Arrays.copyOf(label, size * 2);
+      start = Arrays.copyOf(start, size * 2);
+      end = Arrays.copyOf(end, size * 2);
+    }
+    label[size] = l;
+    start[size] = lo;
+    end[size] = hi;
+    table[slot] = ++size;
+    if (2 * size > table.length) rehash();
+    return size - 1;
+  }
+
+  private static int hash(int l, int lo, int hi) {
+    int h = (l * 31 + lo) * 0x9E3779B9 + hi;
+    return h ^ (h >>> 16);
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hash(label[i], start[i], end[i]) & mask;
+      while (table[slot] != 0) slot = (slot + 1) & mask;
+      table[slot] = i + 1;
+    }
+  }
+
+  /**
+   * Adds a packed alternative to the node being expanded, which is the
+   * first node whose alternatives are not complete
+   */
+  void packed(int l, int r) {
+    left.add(l);
+    right.add(r);
+  }
+
+  /**
+   * Completes the packed alternatives of the node being expanded
+   * @return  the id of the next node to expand, or size() if there is none
+   */
+  int next() {
+    if (expanded + 2 > packedStart.length) packedStart = Arrays.copyOf(packedStart, 2 * packedStart.length);
+    packedStart[++expanded] = left.size;
+    return expanded;
+  }
+
+  /**
+   * @return  the number of nodes
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return  the root node, for the matched symbol over the whole text
+   */
+  public int getRoot() {
+    return 0;
+  }
+
+  /**
+   * @return  the label of a node
+   */
+  int labelOf(int v) {
+    return label[v];
+  }
+
+  /**
+   * @param v   a node
+   * @return    the symbol of a symbol node, or null for other nodes
+   *            (and for the anonymous symbols of { } groups)
+   */
+  public String symbol(int v) {
+    return label[v] >= 0 && label[v] < grammar.declared ? grammar.symbols[label[v]] : null;
+  }
+
+  /**
+   * @param v   a node
+   * @return    whether the node is a single token
+   */
+  public boolean isToken(int v) {
+    return label[v] == TOKEN;
+  }
+
+  /**
+   * @param v   a node
+   * @return    the index of the first token covered by the node
+   */
+  public int start(int v) {
+    return start[v];
+  }
+
+  /**
+   * @param v   a node
+   * @return    one more than the index of the last token covered by the node
+   */
+  public int end(int v) {
+    return end[v];
+  }
+
+  /**
+   * @param v   a node
+   * @return    the number of packed alternatives of the node, more than one
+   *            where its parses diverge
+   */
+  public int packedCount(int v) {
+    return packedStart[v + 1] - packedStart[v];
+  }
+
+  /**
+   * @param v   a node
+   * @param k   the index of one of its packed alternatives
+   * @return    the left child of the alternative, or -1
+   */
+  public int left(int v, int k) {
+    return left.a[packedStart[v] + k];
+  }
+
+  /**
+   * @param v   a node
+   * @param k   the index of one of its packed alternatives
+   * @return    the right child of the alternative, or -1
+   */
+  public int right(int v, int k) {
+    return right.a[packedStart[v] + k];
+  }
+
+  /**
+   * @return  whether a node has no children: a token, or a symbol matched
+   *          through the dictionary
+   */
+  private boolean isLeaf(int v) {
+    return label[v] == TOKEN || (label[v] >= 0 && grammar.lexicon.contains(label[v]));
+  }
+
+  /*************************** Counting ***************************/
+
+  /**
+   * @return  the number of distinct parses, or null if there are infinitely
+   *          many, as when a symbol can derive itself
+   */
+  public BigInteger countParses() {
+    count();
+    return cyclic ? null : counts[0];
+  }
+
+  /**
+   * Counts the parses of every node, children first, with a search that
+   * keeps its own stack so that deep forests cannot overflow the call stack
+   */
+  private void count() {
+    if (counts != null) return;
+    counts = new BigInteger[size];
+    int[] state = new int[size]; //0 unvisited, 1 on the stack, 2 counted
+    int[] cursor = new int[size];
+    IntList stack = new IntList();
+    stack.add(0);
+    state[0] = 1;
+    while (stack.size > 0 && !cyclic) {
+      int v = stack.a[stack.size - 1];
+      int c = cursor[v]; //children visited so far, two per packed alternative
+      if (c < 2 * packedCount(v)) {
+        cursor[v]++;
+        int w = c % 2 == 0 ? left(v, c / 2) : right(v, c / 2);
+        if (w < 0 || state[w] == 2) continue;
+        if (state[w] == 1) cyclic = true;
+        state[w] = 1;
+        stack.add(w);
+        continue;
+      }
+      stack.size--;
+      state[v] = 2;
+      BigInteger n = isLeaf(v) ? BigInteger.ONE : BigInteger.ZERO;
+      for (int k = 0; k < packedCount(v); k++) n = n.add(count(left(v, k)).multiply(count(right(v, k))));
+      counts[v] = n;
+    }
+  }
+
+  private BigInteger count(int v) {
+    return v < 0 ? BigInteger.ONE : counts[v];
+  }
+
+  /**
+   * Chooses for every node the packed alternative of its shallowest parse,
+   * by relaxing the depths of the nodes until none changes
+   */
+  private void choose() {
+    if (choice != null) return;
+    choice = new int[size];
+    int[] depth = new int[size];
+    Arrays.fill(depth, Integer.MAX_VALUE);
+    for (int v = 0; v < size; v++) if (isLeaf(v)) depth[v] = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int v = size - 1; v >= 0; v--) {
+        for (int k = 0; k < packedCount(v); k++) {
+          int l = left(v, k), r = right(v, k);
+          int dl = l < 0 ? 0 : depth[l], dr = r < 0 ? 0 : depth[r];
+          if (dl == Integer.MAX_VALUE || dr == Integer.MAX_VALUE) continue;
+          if (1 + Math.max(dl, dr) < depth[v]) {
+            depth[v] = 1 + Math.max(dl, dr);
+            choice[v] = k;
+            changed = true;
+          }
+        }
+      }
+    }
+  }
+
+  /*************************** Parses ***************************/
+
+  /**
+   * @return  one parse of the text, with the fewest levels of nesting
+   */
+  public ParseTree firstParse() {
+    choose();
+    return build(null);
+  }
+
+  /**
+   * Builds a single parse, without enumerating any other
+   * @param i   the index of the parse, from 0 to countParses() - 1
+   * @return    the i-th parse, in an order fixed by the forest
+   * @throws IllegalStateException  if there are infinitely many parses
+   */
+  public ParseTree parse(BigInteger i) {
+    count();
+    if (cyclic) throw new IllegalStateException("The text has infinitely many parses.");
+    if (i.signum() < 0 || i.compareTo(counts[0]) >= 0) throw new IndexOutOfBoundsException(i.toString());
+    return build(i);
+  }
+
+  /**
+   * @return  every parse in turn, each built only when it is reached
+   * @throws IllegalStateException  if there are infinitely many parses
+   */
+  public Iterable<ParseTree> parses() {
+    final BigInteger n = countParses();
+    if (n == null) throw new IllegalStateException("The text has infinitely many parses.");
+    return new Iterable<ParseTree>() {
+      public Iterator<ParseTree> iterator() {
+        return new Iterator<ParseTree>() {
+          BigInteger i = BigInteger.ZERO;
+          public boolean hasNext() {
+            return i.compareTo(n) < 0;
+          }
+          public ParseTree next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            ParseTree t = build(i);
+            i = i.add(BigInteger.ONE);
+            return t;
+          }
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * A node still to be added to a tree: which of its parses, and the list
+   * of children it is to be added to
+   */
+  private static class Task {
+    final int node;
+    final BigInteger index;
+    final List<ParseTree> out;
+
+    Task(int node, BigInteger index, List<ParseTree> out) {
+      this.node = node;
+      this.index = index;
+      this.out = out;
+    }
+  }
+
+  /**
+   * Builds a parse tree from the root down, with its own stack. Intermediate
+   * nodes and the anonymous symbols of groups are flattened into the
+   * children of the symbol they belong to.
+   * @param index   the index of the parse, or null for the shallowest one
+   */
+  private ParseTree build(BigInteger index) {
+    ArrayList<ParseTree> roots = new ArrayList<ParseTree>();
+    ArrayDeque<Task> stack = new ArrayDeque<Task>();
+    stack.push(new Task(0, index, roots));
+    while (!stack.isEmpty()) {
+      Task t = stack.pop();
+      int v = t.node;
+      if (v < 0) continue;
+      if (label[v] == TOKEN) {
+        t.out.add(new ParseTree(null, start[v], end[v], result.token(start[v])));
+        continue;
+      }
+      List<ParseTree> out = t.out;
+      if (label[v] >= 0 && label[v] < grammar.declared) {
+        ParseTree tree = new ParseTree(grammar.symbols[label[v]], start[v], end[v], null);
+        out.add(tree);
+        out = tree.children;
+      }
+      if (isLeaf(v)) {
+        for (int i = start[v]; i < end[v]; i++)
+          out.add(new ParseTree(null, i, i + 1, result.token(i)));
+        continue;
+      }
+      //pick a packed alternative, and the parses of its children
+      int k = 0;
+      BigInteger li = null, ri = null;
+      if (t.index == null) {
+        k = choice[v];
+      } else {
+        BigInteger i = t.index;
+        for (;; k++) {
+          BigInteger n = count(left(v, k)).multiply(count(right(v, k)));
+          if (i.compareTo(n) < 0) break;
+          i = i.subtract(n);
+        }
+        BigInteger[] qr = i.divideAndRemainder(count(right(v, k)));
+        li = qr[0];
+        ri = qr[1];
+      }
+      stack.push(new Task(right(v, k), ri, out));
+      stack.push(new Task(left(v, k), li, out));
+    }
+    return roots.get(0);
+  }
+
+}
@@ -0,0 +1,111 @@
+/**
+ * ParseTree is a single parse of a text, built from a ParseForest.
+ *
+ * Each node is either a symbol matching the tokens [start, end), whose
+ * children are the symbols and tokens of the alternative it matched,
+ * or a single token, which has no children.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ParseTree {
+
+  private final String symbol, token; //exactly one of which is null
+  private final int start, end;
+  final ArrayList<ParseTree> children = new ArrayList<ParseTree>();
+
+  /**
+   * Constructor
+   * @param symbol  the symbol matched, or null for a token
+   * @param start   the index of the first token covered
+   * @param end     one more than the index of the last token covered
+   * @param token   the token, or null for a symbol
+   */
+  ParseTree(String symbol, int start, int end, String token) {
+    this.symbol = symbol;
+    this.start = start;
+    this.end = end;
+    this.token = token;
+  }
+
+  /**
+   * @return  the symbol matched, or null if this is a token
+   */
+  public String getSymbol() {
+    return symbol;
+  }
+
+  /**
+   * @return  the token, as it appeared in the text, or null if this is a symbol
+   */
+  public String getToken() {
+    return token;
+  }
+
+  /**
+   * @return  whether this is a single token
+   */
+  public boolean isToken() {
+    return token != null;
+  }
+
+  /**
+   * @return  the index of the first token covered
+   */
+  public int getStart() {
+    return start;
+  }
+
+  /**
+   * @return  one more than the index of the last token covered
+   */
+  public int getEnd() {
+    return end;
+  }
+
+  /**
+   * @return  the symbols and tokens of the alternative matched, in order
+   */
+  public List<ParseTree> getChildren() {
+    return Collections.unmodifiableList(children);
+  }
+
+  /**
+   * Renders the tree in bracketed form, e.g. (sentence (noun cat) eats)
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    //nodes still to be written, with null marking where a bracket closes
+    ArrayDeque<Object> stack = new ArrayDeque<Object>();
+    stack.push(this);
+    boolean first = true;
+    while (!stack.isEmpty()) {
+      Object o = stack.pop();
+      if (o == CLOSE) {
+        sb.append(')');
+        continue;
+      }
+      ParseTree t = (ParseTree)o;
+      if (!first) sb.append(' ');
+      first = false;
+      if (t.isToken()) {
+        sb.append(t.token);
+        continue;
+      }
+      sb.append('(').append(t.symbol);
+      stack.push(CLOSE);
+      for (int i = t.children.size() - 1; i >= 0; i--) stack.push(t.children.get(i));
+    }
+    return sb.toString();
+  }
+
+  private static final Object CLOSE = new Object();
+
+}
@@ -1,10 +1,17 @@
 /**
  * A JFrame that displays the results of the matching.
- * 
+ *
+ * The sub-matches are shown from a ResultModel, rendered only as they come
+ * into sight: on the left as a tree of the symbols that matched, each of
+ * which expands into its sub-matches, and on the right as a list of the
+ * sub-matches of the symbol selected in the tree. The symbols shown can be
+ * filtered by name.
+ *
  * @author    Alex Li <alextrovert@gmail.com>
  * @version   1.0
  */
 
+import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
@@ -12,82 +19,202 @@ import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
+import javax.swing.DefaultListModel;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
+import javax.swing.JSplitPane;
+import javax.swing.JTextField;
+import javax.swing.JTree;
+import javax.swing.ListSelectionModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.TreeSelectionEvent;
+import javax.swing.event.TreeSelectionListener;
+import javax.swing.tree.TreePath;
+import javax.swing.tree.TreeSelectionModel;
 
 public class ResultFrame extends JFrame implements ActionListener {
 
   private static final long serialVersionUID = 1L;
   private JPanel resultPanel;
-  private JTextArea resultArea;
+  private JLabel resultLabel;
+  private JTextField filterField; //to filter the symbols shown by name
+  private JTree symbolTree;
+  private JList<String> matchList; //the sub-matches of the selected symbol
   private JButton closeButton;
-  
+  private ResultModel model;
+
   /**
    * Constructor from matching results
-   * @param matched       whether the match was successful
-   * @param resultString  the formatted String of matches to display
+   * @param model   the matching results
+   * @param note    why the matches shown are partial, or null if they are not
    */
-  public ResultFrame(boolean matched, String resultString) {
+  public ResultFrame(ResultModel model, String note) {
     this.setTitle("Analysis Results");
     this.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-    this.setSize(Main.WIDTH/2, Main.HEIGHT - 100);
+    this.setSize(Main.WIDTH - 100, Main.HEIGHT - 100);
     this.setResizable(false);
     this.setLocationRelativeTo(null); //center window on screen
-    
+
     resultPanel = new JPanel();
     resultPanel.setLayout(new GridBagLayout());
     GridBagConstraints c = new GridBagConstraints();
-    
-    JLabel resultLabel = new JLabel();
+
+    resultLabel = new JLabel();
     resultLabel.setFont(Main.normalFont.deriveFont(13.0f));
-    if (matched) {
-      resultPanel.setBackground(Color.green);
-      resultLabel.setText("<html>Text successfully matched by automaton.<br/>" +
-                          "See matches below:</html>");
-    } else {
-      resultPanel.setBackground(Color.red);
-      resultLabel.setText("<html>Text could not be matched by automaton.<br/>" +
-                          "See partial matches below:</html>");
-    }
-    
-    resultArea = new JTextArea();
-    resultArea.setEditable(false);
-    resultArea.setFont(Main.monospaceFont.deriveFont(13.0f));
-    resultArea.setText(resultString);
-    JScrollPane resultScrollArea = new JScrollPane(resultArea);
-    
+
+    JPanel filterPanel = new JPanel(new BorderLayout(5, 0));
+    filterPanel.setOpaque(false);
+    JLabel filterLabel = new JLabel("Show symbols containing:");
+    filterLabel.setFont(Main.normalFont.deriveFont(13.0f));
+    filterField = new JTextField();
+    filterField.setFont(Main.monospaceFont.deriveFont(13.0f));
+    filterField.getDocument().addDocumentListener(new DocumentListener() {
+      public void insertUpdate(DocumentEvent de) {
+        filter();
+      }
+      public void removeUpdate(DocumentEvent de) {
+        filter();
+      }
+      public void changedUpdate(DocumentEvent de) {} //attributes only
+    });
+    filterPanel.add(filterLabel, BorderLayout.WEST);
+    filterPanel.add(filterField, BorderLayout.CENTER);
+
+    //rows of a fixed height, so that only the rows in sight are ever rendered
+    symbolTree = new JTree(model);
+    symbolTree.setFont(Main.monospaceFont.deriveFont(13.0f));
+    symbolTree.setRootVisible(false);
+    symbolTree.setShowsRootHandles(true);
+    symbolTree.setRowHeight(symbolTree.getFontMetrics(symbolTree.getFont()).getHeight() + 2);
+    symbolTree.setLargeModel(true);
+    symbolTree.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);
+    symbolTree.addTreeSelectionListener(new TreeSelectionListener() {
+      public void valueChanged(TreeSelectionEvent e) {
+        select(e.getNewLeadSelectionPath());
+      }
+    });
+    matchList = new JList<String>();
+    matchList.setFont(Main.monospaceFont.deriveFont(13.0f));
+    matchList.setFixedCellHeight(matchList.getFontMetrics(matchList.getFont()).getHeight() + 2);
+    StringBuilder widest = new StringBuilder("0000-0000  [ ");
+    for (int i = 0; i < ResultModel.ROW_TOKENS; i++) widest.append("xxxxxx ");
+    matchList.setPrototypeCellValue(widest.append("... ]").toString());
+    matchList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+    JSplitPane resultSplit = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,
+                                            new JScrollPane(symbolTree), new JScrollPane(matchList));
+    resultSplit.setDividerLocation((Main.WIDTH - 100) / 3);
+
     closeButton = new JButton("Done");
     closeButton.setFont(Main.normalFont.deriveFont(13.0f));
     closeButton.setActionCommand("Close");
     closeButton.addActionListener(this);
-    
+
     //Add components to the JPanel using GridBagLayout
     c.fill = GridBagConstraints.BOTH;
     c.gridx = 0;
     c.gridy = 0;
+    c.weightx = 1;
     c.weighty = 1;
-    c.insets = new Insets(10, 0, 10, 0);
+    c.insets = new Insets(10, 10, 10, 10);
     c.anchor = GridBagConstraints.LINE_START;
     resultPanel.add(resultLabel, c);
-    
-    c.gridx = 0;
+
     c.gridy = 1;
-    c.weighty = 20;
-    resultPanel.add(resultScrollArea, c);
-    
-    c.gridx = 0;
+    c.insets = new Insets(0, 10, 10, 10);
+    resultPanel.add(filterPanel, c);
+
     c.gridy = 2;
+    c.weighty = 20;
+    resultPanel.add(resultSplit, c);
+
+    c.gridy = 3;
     c.weighty = 1;
+    c.insets = new Insets(10, 10, 10, 10);
     resultPanel.add(closeButton, c);
-    
+
+    update(model, note);
     this.add(resultPanel);
     this.setVisible(true);
   }
 
+  /**
+   * Shows the results of matching the text again, in place, so that the
+   * frame neither moves nor takes the focus from the editor. The filter,
+   * and the selected symbol if it still matched, are kept.
+   * @param model   the matching results
+   * @param note    why the matches shown are partial, or null if they are not
+   */
+  public void update(ResultModel model, String note) {
+    String selected = selectedSymbol();
+    this.model = model;
+    model.setFilter(filterField.getText());
+    String partial = note == null ? "" : "<br/>" + note + " The matches below are partial.";
+    if (model.getResult().isMatched()) {
+      resultPanel.setBackground(Color.green);
+      resultLabel.setText("<html>Text successfully matched by automaton." + partial + "<br/>" +
+                          "See matches below:</html>");
+    } else {
+      resultPanel.setBackground(Color.red);
+      resultLabel.setText("<html>Text could not be matched by automaton." + partial + "<br/>" +
+                          "See partial matches below:</html>");
+    }
+    symbolTree.setModel(model);
+    selectSymbol(selected);
+  }
+
+  /**
+   * @return  the name of the symbol selected in the tree, or null
+   */
+  private String selectedSymbol() {
+    TreePath path = symbolTree.getSelectionPath();
+    return path == null ? null : ((ResultModel.Matches)path.getPathComponent(1)).symbol;
+  }
+
+  /**
+   * Selects a symbol in the tree, or the first shown if it is not shown
+   */
+  private void selectSymbol(String symbol) {
+    ResultModel.Matches g = symbol == null ? null : model.getShown(symbol);
+    if (g == null && !model.getShown().isEmpty()) g = model.getShown().get(0);
+    if (g == null) {
+      symbolTree.clearSelection();
+      matchList.setModel(new DefaultListModel<String>());
+      return;
+    }
+    symbolTree.setSelectionPath(new TreePath(new Object[] { model.getRoot(), g }));
+  }
+
+  /**
+   * Shows the sub-matches of the symbol selected in the tree, scrolled to
+   * the sub-match selected, if any
+   */
+  private void select(TreePath path) {
+    if (path == null || path.getPathCount() < 2) return;
+    ResultModel.Matches g = (ResultModel.Matches)path.getPathComponent(1);
+    if (matchList.getModel() != g) matchList.setModel(g);
+    if (path.getLastPathComponent() instanceof ResultModel.Row) {
+      int i = ((ResultModel.Row)path.getLastPathComponent()).index;
+      matchList.setSelectedIndex(i);
+      matchList.ensureIndexIsVisible(i);
+    } else {
+      matchList.clearSelection();
+    }
+  }
+
+  /**
+   * Shows only the symbols whose names contain the text of filterField
+   */
+  private void filter() {
+    String selected = selectedSymbol();
+    model.setFilter(filterField.getText());
+    selectSymbol(selected);
+  }
+
   @Override
   public void actionPerformed(ActionEvent e) {
     if (e.getActionCommand().equals("Close")) {
@@ -0,0 +1,192 @@
+/**
+ * ResultModel presents the sub-matches of a MatchResult to Swing: as a tree
+ * of the symbols that matched, each holding its sub-matches, and as a list
+ * of the sub-matches of each symbol.
+ *
+ * Nothing is rendered in advance. The sub-matches are only put in order, by
+ * symbol and then by position, and a row is rendered when a view asks for
+ * it, which JTree and JList do only for the rows in sight. Opening the
+ * results thus takes time linear in the number of sub-matches, and rows
+ * are rendered as they are scrolled to, however many there are.
+ *
+ * The symbols shown can be filtered by name, which changes the tree.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.util.ArrayList;
+
+import javax.swing.AbstractListModel;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+public class ResultModel implements TreeModel {
+
+  static final int ROW_TOKENS = 30; //tokens of a sub-match rendered in its row
+
+  private final MatchResult res;
+  private final int[] order; //the sub-matches, by symbol and then by position
+  private final ArrayList<Matches> groups = new ArrayList<Matches>(); //of symbols with sub-matches
+  private final ArrayList<Matches> shown = new ArrayList<Matches>(); //the groups passing the filter
+  private final Object root = "Matches";
+  private final ArrayList<TreeModelListener> listeners = new ArrayList<TreeModelListener>();
+
+  /**
+   * Constructor, which orders the sub-matches but renders none of them
+   * @param res   the result to be presented
+   */
+  public ResultModel(MatchResult res) {
+    this.res = res;
+    int[] first = new int[res.symbolCount() + 1];
+    order = res.orderBySymbol(first);
+    for (int s = 0; s < first.length - 1; s++)
+      if (first[s] < first[s + 1])
+        groups.add(new Matches(res.symbol(order[first[s]]), first[s], first[s + 1]));
+    shown.addAll(groups);
+  }
+
+  /**
+   * @return  the result presented
+   */
+  public MatchResult getResult() {
+    return res;
+  }
+
+  /**
+   * Shows only the symbols whose names contain a String
+   * @param filter  the String, in any case, or "" to show every symbol
+   */
+  public void setFilter(String filter) {
+    filter = filter.trim().toLowerCase();
+    shown.clear();
+    for (Matches g : groups)
+      if (g.symbol.toLowerCase().contains(filter)) shown.add(g);
+    TreeModelEvent e = new TreeModelEvent(this, new TreePath(root));
+    for (TreeModelListener l : new ArrayList<TreeModelListener>(listeners))
+      l.treeStructureChanged(e);
+  }
+
+  /**
+   * @return  the symbols shown, each with its sub-matches
+   */
+  public ArrayList<Matches> getShown() {
+    return shown;
+  }
+
+  /**
+   * @param symbol  name of a symbol
+   * @return        its sub-matches, if it is shown, or null
+   */
+  public Matches getShown(String symbol) {
+    for (Matches g : shown)
+      if (g.symbol.equals(symbol)) return g;
+    return null;
+  }
+
+  /**
+   * Renders a sub-match, as its token span and at most ROW_TOKENS of its tokens
+   * @param i   index of the sub-match in res
+   */
+  private String render(int i) {
+    int lo = res.start(i), hi = res.end(i);
+    StringBuilder sb = new StringBuilder().append(lo).append('-').append(hi).append("  [ ");
+    for (int k = lo; k < hi && k < lo + ROW_TOKENS; k++) sb.append(res.token(k)).append(' ');
+    if (hi - lo > ROW_TOKENS) sb.append("... ");
+    return sb.append(']').toString();
+  }
+
+  /**
+   * The sub-matches of one symbol, as a list and as a node of the tree
+   */
+  public class Matches extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+    final String symbol;
+    private final int lo, hi; //range of order
+
+    Matches(String symbol, int lo, int hi) {
+      this.symbol = symbol;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    public int getSize() {
+      return hi - lo;
+    }
+
+    public String getElementAt(int i) {
+      return render(order[lo + i]);
+    }
+
+    public String toString() {
+      return "<" + symbol + ">  (" + (hi - lo) + ")";
+    }
+  }
+
+  /**
+   * A sub-match as a leaf of the tree, rendered when it is displayed
+   */
+  static final class Row {
+
+    final Matches group;
+    final int index; //in group
+
+    Row(Matches group, int index) {
+      this.group = group;
+      this.index = index;
+    }
+
+    public String toString() {
+      return group.getElementAt(index);
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof Row && ((Row)o).group == group && ((Row)o).index == index;
+    }
+
+    public int hashCode() {
+      return 31 * group.hashCode() + index;
+    }
+  }
+
+  /**************************** TreeModel ****************************/
+
+  public Object getRoot() {
+    return root;
+  }
+
+  public Object getChild(Object parent, int index) {
+    if (parent == root) return shown.get(index);
+    return new Row((Matches)parent, index);
+  }
+
+  public int getChildCount(Object parent) {
+    if (parent == root) return shown.size();
+    if (parent instanceof Matches) return ((Matches)parent).getSize();
+    return 0;
+  }
+
+  public boolean isLeaf(Object node) {
+    return node instanceof Row;
+  }
+
+  public int getIndexOfChild(Object parent, Object child) {
+    if (parent == root) return shown.indexOf(child);
+    if (child instanceof Row && ((Row)child).group == parent) return ((Row)child).index;
+    return -1;
+  }
+
+  public void valueForPathChanged(TreePath path, Object newValue) {} //not editable
+
+  public void addTreeModelListener(TreeModelListener l) {
+    listeners.add(l);
+  }
+
+  public void removeTreeModelListener(TreeModelListener l) {
+    listeners.remove(l);
+  }
+
+}
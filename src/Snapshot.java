@@ -0,0 +1,128 @@
+/**
+ * Snapshot reads and writes compiled grammars in a compact binary format,
+ * so that large grammars and dictionaries can be loaded without parsing.
+ *
+ * The file is a header followed by a string table and the flat arrays of
+ * the Grammar, its Lookahead and its Lexicon, each array prefixed by its
+ * length. All values are big-endian. Files are read through a memory-mapped
+ * FileChannel, and the arrays are copied out with bulk reads, so loading
+ * time is proportional to the size of the file rather than the number of
+ * rules in it.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+final class Snapshot {
+
+  private static final int MAGIC = 0x424E4653; //"BNFS"
+  private static final int VERSION = 3;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private Snapshot() {}
+
+  /**
+   * Writes a compiled grammar to a file
+   * @param f           the file to be written
+   * @param g           the grammar
+   * @param recursive   whether any symbol of g is defined in terms of itself
+   */
+  static void write(File f, Grammar g, boolean recursive) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(recursive ? 1 : 0);
+      g.write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Maps a file into memory and checks its header
+   * @param f   the file to be read
+   * @return    the mapped contents, positioned after the header
+   */
+  static ByteBuffer map(File f) throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      FileChannel ch = raf.getChannel();
+      ByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      if (in.remaining() < 8 || in.getInt() != MAGIC)
+        throw new Exception("Not a compiled grammar file: " + f.getName());
+      if (in.getInt() != VERSION)
+        throw new Exception("Unsupported compiled grammar version: " + f.getName());
+      return in;
+    } finally {
+      raf.close(); //the mapping stays valid after the channel is closed
+    }
+  }
+
+  /**
+   * @return  whether the grammar in a mapped file is recursive
+   */
+  static boolean readRecursive(ByteBuffer in) {
+    return in.getInt() != 0;
+  }
+
+  static void writeInts(DataOutputStream out, int[] a) throws IOException {
+    out.writeInt(a.length);
+    for (int v : a) out.writeInt(v);
+  }
+
+  static int[] readInts(ByteBuffer in) {
+    int[] a = new int[in.getInt()];
+    in.asIntBuffer().get(a);
+    in.position(in.position() + 4 * a.length);
+    return a;
+  }
+
+  static void writeLongs(DataOutputStream out, long[] a) throws IOException {
+    out.writeInt(a.length);
+    for (long v : a) out.writeLong(v);
+  }
+
+  static long[] readLongs(ByteBuffer in) {
+    long[] a = new long[in.getInt()];
+    in.asLongBuffer().get(a);
+    in.position(in.position() + 8 * a.length);
+    return a;
+  }
+
+  /**
+   * Writes a string table: the count, then each String's UTF-8 length and bytes
+   */
+  static void writeStrings(DataOutputStream out, String[] a) throws IOException {
+    out.writeInt(a.length);
+    for (String s : a) {
+      byte[] b = s.getBytes(UTF8);
+      out.writeInt(b.length);
+      out.write(b);
+    }
+  }
+
+  static String[] readStrings(ByteBuffer in) {
+    String[] a = new String[in.getInt()];
+    byte[] buf = new byte[64];
+    for (int i = 0; i < a.length; i++) {
+      int len = in.getInt();
+      if (len > buf.length) buf = new byte[len];
+      in.get(buf, 0, len);
+      a[i] = new String(buf, 0, len, UTF8);
+    }
+    return a;
+  }
+
+}
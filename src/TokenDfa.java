@@ -0,0 +1,511 @@
+/**
+ * TokenDfa matches non-recursive grammars with a deterministic automaton
+ * over tokens, built lazily by subset construction the first time each of
+ * its states and transitions is needed, and kept for later matches.
+ *
+ * Without recursion, the language of every symbol is regular: a position in
+ * the grammar, with the stack of symbols it lies in, can only take finitely
+ * many values. Each such configuration is interned as a (caller, position)
+ * pair, where a position is either an (alternative, dot) pair numbered as in
+ * ChartParser or a node of the Lexicon trie. A state of the automaton is the
+ * set of configurations that wait for a token, with whether it accepts and
+ * which declared symbols were predicted on the way to it. States are
+ * identified by these sets, so equivalent subsets are only built once.
+ *
+ * A text is recognized in a single pass, one transition per token, without
+ * any backtracking. The same sub-matches as the chart parser's are then
+ * recovered: wherever a symbol was predicted and can begin with the next
+ * token, it is scanned forward with its own automaton until that dies, and
+ * each accepting position ends a span. Which predicted symbols can begin
+ * with a token is kept with each transition.
+ * Symbols of bounded length, which all but repeated groups are, keep this
+ * linear in the length of the text.
+ *
+ * The same automata find a symbol anywhere in a text, by being run from
+ * every token that can begin it.
+ *
+ * Once the automaton would grow beyond MAX_STATES states or MAX_CONFIGS
+ * configurations, it is abandoned, and match() and scan() return TOO_LARGE.
+ *
+ * The automaton is shared by concurrent matches: transitions are read
+ * without locking, and missing ones are built under the automaton's lock.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+final class TokenDfa {
+
+  //returned by match() once the automaton is too large to be built
+  static final int TOO_LARGE = -2;
+
+  private static final int MAX_STATES = 20000, MAX_CONFIGS = 1 << 20;
+
+  private final Grammar g;
+  //each (alternative, dot) pair is numbered as a position: itemStart[a] + a + dot
+  private final int[] posAlt;
+
+  //configuration c is position cPos[c] within caller cParent[c], where a
+  //negative position ~node is a node of the lexicon trie. Configuration 0
+  //is the caller of the symbol being matched, and completing it accepts.
+  private int[] cParent = new int[64], cPos = new int[64];
+  private int configs = 1;
+  private final HashMap<Long, Integer> configIds = new HashMap<Long, Integer>();
+  private static final int ACCEPT = -1; //what configuration 0 advances to
+
+  private final HashMap<Key, State> states = new HashMap<Key, State>();
+  private final State dead = new State(new int[0], false, new int[0]);
+  private final Edge deadEdge = new Edge(dead, new int[0]);
+  //every transition by id, published after each new one is stored
+  private volatile Edge[] edges = new Edge[16];
+  private int edgeCount;
+  private final AtomicReferenceArray<State> starts; //the start state of each symbol
+  private volatile boolean abandoned;
+
+  //scratch space of closure(), only used under the lock
+  private final IntList work = new IntList(), scan = new IntList(), entries = new IntList();
+  private int[] seen = new int[64], predicted;
+  private int gen;
+  private boolean accept;
+
+  /**
+   * A state of the automaton, with its transitions
+   */
+  private static final class State {
+    final int[] scan;     //the configurations waiting for a token, sorted
+    final boolean accept; //whether the tokens up to here match
+    final int[] entries;  //the declared symbols predicted here, sorted
+
+    //open-addressing table of (literal + 1) << 32 | transition id, or 0 if
+    //empty, replaced by a larger one as it fills up
+    volatile AtomicLongArray next = new AtomicLongArray(8);
+    int transitions;
+
+    State(int[] scan, boolean accept, int[] entries) {
+      this.scan = scan;
+      this.accept = accept;
+      this.entries = entries;
+    }
+  }
+
+  /**
+   * A transition on a token: its target, and the entries of its source
+   * that can begin with the token
+   */
+  private static final class Edge {
+    final State target;
+    final int[] starting;
+
+    Edge(State target, int[] starting) {
+      this.target = target;
+      this.starting = starting;
+    }
+  }
+
+  /**
+   * The identity of a state: its sorted configurations, acceptance and entries
+   */
+  private static final class Key {
+    final int[] a;
+    final int hash;
+
+    Key(int[] a) {
+      this.a = a;
+      hash = Arrays.hashCode(a);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(a, ((Key)o).a);
+    }
+  }
+
+  //thrown when the automaton outgrows its limits
+  private static final class Overflow extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Constructor for an automaton with no states built yet
+   * @param g   the compiled grammar to match with, which must not be recursive
+   */
+  TokenDfa(Grammar g) {
+    this.g = g;
+    posAlt = new int[g.items.length + g.altCount()];
+    for (int a = 0; a < g.altCount(); a++)
+      for (int p = base(a); p <= base(a) + length(a); p++)
+        posAlt[p] = a;
+    starts = new AtomicReferenceArray<State>(g.symbols.length);
+    predicted = new int[g.symbols.length];
+    cPos[0] = Integer.MAX_VALUE;
+  }
+
+  private int base(int a) {
+    return g.itemStart[a] + a;
+  }
+
+  private int length(int a) {
+    return g.itemStart[a + 1] - g.itemStart[a];
+  }
+
+  /**
+   * Matches the tokens as a symbol, recording every sub-match into result
+   * @param start     id of the symbol to be matched
+   * @param lits      literal id of each token, or -1 if no definition uses it
+   * @param result    in which every recognized sub-match is recorded
+   * @param budget    the limits of the match, in which a step is one transition
+   * @param progress  to which progress is published, or null
+   * @return          1 if the tokens match start, 0 if not, -1 if the match
+   *                  ran out of budget or was cancelled, or TOO_LARGE if the
+   *                  automaton is too large to be built
+   */
+  int match(int start, int[] lits, MatchResult result, MatchBudget budget, MatchProgress progress) {
+    if (abandoned) return TOO_LARGE;
+    long startTime = System.nanoTime(), steps = 0, nextCheck = budget.nextCheck(0);
+    int n = lits.length;
+    try {
+      //recognize, keeping the transition taken at each token
+      Edge[] taken = new Edge[n];
+      State s = start(start);
+      int live = 0;
+      while (live < n) {
+        if (++steps >= nextCheck) {
+          MatchResult.Stop stop = budget.check(steps, startTime, live, result, 8L * n, progress);
+          if (stop != null) return finish(result, -1, stop, steps, startTime, n);
+          nextCheck = budget.nextCheck(steps);
+        }
+        Edge e = next(s, lits[live]);
+        if (e.target == dead) break;
+        taken[live++] = e;
+        s = e.target;
+      }
+      boolean accepted = live == n && s.accept;
+      //scan each symbol from wherever it was predicted and can begin, which
+      //is never where the automaton died
+      IntList ends = new IntList();
+      for (int i = 0; i < live; i++) {
+        for (int x : taken[i].starting) {
+          if (g.lexicon.contains(x)) {
+            ends.clear();
+            g.lexicon.ends(x, lits, i, ends);
+            for (int k = 0; k < ends.size; k++) result.add(x, i, ends.a[k]);
+            continue;
+          }
+          s = start(x);
+          for (int j = i; ; j++) {
+            if (j > i && s.accept) result.add(x, i, j);
+            if (j == n || (s = next(s, lits[j]).target) == dead) break;
+            if (++steps >= nextCheck) {
+              MatchResult.Stop stop = budget.check(steps, startTime, live, result, 8L * n, progress);
+              if (stop != null) return finish(result, -1, stop, steps, startTime, n);
+              nextCheck = budget.nextCheck(steps);
+            }
+          }
+        }
+      }
+      return finish(result, accepted ? 1 : 0, null, steps, startTime, n);
+    } catch (Overflow e) {
+      abandoned = true;
+      return TOO_LARGE;
+    }
+  }
+
+  /**
+   * Finds the spans of the tokens that a symbol matches, by running its
+   * automaton forward from every token that can begin it until it dies
+   * @param start        id of the symbol to be found
+   * @param lits         literal id of each token, or -1 if no definition uses it
+   * @param first        for each literal id, whether a match may begin with it
+   * @param overlapping  whether every span is wanted, or only the longest
+   *                     span at the leftmost start, then from where it ends
+   * @param result       in which the spans of start are recorded
+   * @param budget       the limits of the scan, in which a step is one transition
+   * @param progress     to which progress is published, or null
+   * @return             0 once the scan is complete, -1 if it ran out of budget
+   *                     or was cancelled, or TOO_LARGE if the automaton is too
+   *                     large to be built
+   */
+  int scan(int start, int[] lits, boolean[] first, boolean overlapping,
+           MatchResult result, MatchBudget budget, MatchProgress progress) {
+    if (abandoned) return TOO_LARGE;
+    long startTime = System.nanoTime(), steps = 0, nextCheck = budget.nextCheck(0);
+    int n = lits.length;
+    boolean lexical = g.lexicon.contains(start);
+    IntList ends = new IntList();
+    try {
+      for (int i = 0; i < n; i++) {
+        if (lits[i] < 0 || !first[lits[i]]) continue;
+        if (++steps >= nextCheck) {
+          MatchResult.Stop stop = budget.check(steps, startTime, i, result, 8L * n, progress);
+          if (stop != null) return finish(result, -1, stop, steps, startTime, n);
+          nextCheck = budget.nextCheck(steps);
+        }
+        ends.clear();
+        if (lexical) {
+          g.lexicon.ends(start, lits, i, ends);
+        } else {
+          State s = start(start);
+          for (int j = i; ; j++) {
+            if (j > i && s.accept) ends.add(j);
+            if (j == n || (s = next(s, lits[j]).target) == dead) break;
+            if (++steps >= nextCheck) {
+              MatchResult.Stop stop = budget.check(steps, startTime, i, result, 8L * n, progress);
+              if (stop != null) return finish(result, -1, stop, steps, startTime, n);
+              nextCheck = budget.nextCheck(steps);
+            }
+          }
+        }
+        if (ends.size == 0) continue;
+        if (overlapping) {
+          for (int k = 0; k < ends.size; k++) result.add(start, i, ends.a[k]);
+          continue;
+        }
+        int end = ends.a[0];
+        for (int k = 1; k < ends.size; k++) end = Math.max(end, ends.a[k]);
+        result.add(start, i, end);
+        i = end - 1;
+      }
+      return finish(result, 0, null, steps, startTime, n);
+    } catch (Overflow e) {
+      abandoned = true;
+      return TOO_LARGE;
+    }
+  }
+
+  /**
+   * Records the statistics of a match in its result
+   * @return  outcome, the value to be returned by match()
+   */
+  private static int finish(MatchResult result, int outcome, MatchResult.Stop stop,
+                            long steps, long startTime, int n) {
+    result.stopped = stop;
+    result.steps = steps;
+    result.elapsed = System.nanoTime() - startTime;
+    result.memory = 8L * n + result.bytes();
+    return outcome;
+  }
+
+  /**
+   * @return  the number of states built so far
+   */
+  synchronized int stateCount() {
+    return states.size();
+  }
+
+  /*************************** Construction ***************************/
+
+  /**
+   * @return  the state before any token of a match of symbol x
+   */
+  private State start(int x) {
+    State s = starts.get(x);
+    if (s != null) return s;
+    synchronized (this) {
+      if ((s = starts.get(x)) != null) return s;
+      begin();
+      predict(0, x);
+      s = closure();
+      starts.set(x, s);
+      return s;
+    }
+  }
+
+  /**
+   * @return  the transition on a token in state s, whose target is dead if
+   *          the token cannot follow
+   */
+  private Edge next(State s, int lit) {
+    if (lit < 0 || s == dead) return deadEdge;
+    Edge e = lookup(s, lit);
+    if (e != null) return e;
+    synchronized (this) {
+      if ((e = lookup(s, lit)) != null) return e;
+      begin();
+      for (int c : s.scan) {
+        int p = cPos[c];
+        if (p < 0) {
+          int child = g.lexicon.child(~p, lit);
+          if (child >= 0) push(config(cParent[c], ~child));
+        } else {
+          int a = posAlt[p];
+          if (~g.items[g.itemStart[a] + p - base(a)] == lit) push(config(cParent[c], p + 1));
+        }
+      }
+      State t = closure();
+      //the entries that can begin with lit, by their tries and FIRST sets
+      IntList starting = new IntList();
+      for (int x : s.entries) {
+        boolean can;
+        if (g.lexicon.contains(x))
+          can = g.lexicon.child(g.lexicon.root(x), lit) >= 0;
+        else
+          can = !g.lookahead.firstKnown(x) || Arrays.binarySearch(g.lookahead.first,
+                    g.lookahead.firstStart[x], g.lookahead.firstStart[x + 1], lit) >= 0;
+        if (can) starting.add(x);
+      }
+      e = new Edge(t, Arrays.copyOf(starting.a, starting.size));
+      insert(s, lit, e);
+      return e;
+    }
+  }
+
+  private static int hash(int lit) {
+    int h = lit * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * @return  the transition of s on lit, or null if it is not built yet
+   */
+  private Edge lookup(State s, int lit) {
+    AtomicLongArray t = s.next;
+    int mask = t.length() - 1;
+    for (int slot = hash(lit) & mask; ; slot = (slot + 1) & mask) {
+      long e = t.get(slot);
+      if (e == 0) return null;
+      if ((int)(e >>> 32) == lit + 1) return edges[(int)e];
+    }
+  }
+
+  /**
+   * Adds a transition, under the lock. It is published in edges before the
+   * entry that refers to it is.
+   */
+  private void insert(State s, int lit, Edge edge) {
+    Edge[] a = edges;
+    if (edgeCount == a.length) a = Arrays.copyOf(a, 2 * edgeCount);
+    a[edgeCount] = edge;
+    edges = a;
+    int id = edgeCount++;
+    AtomicLongArray t = s.next;
+    if (2 * (s.transitions + 1) > t.length()) {
+      AtomicLongArray bigger = new AtomicLongArray(2 * t.length());
+      for (int i = 0; i < t.length(); i++) {
+        long e = t.get(i);
+        if (e != 0) place(bigger, e);
+      }
+      t = bigger;
+    }
+    place(t, ((long)(lit + 1) << 32) | id);
+    s.next = t;
+    s.transitions++;
+  }
+
+  private static void place(AtomicLongArray t, long e) {
+    int mask = t.length() - 1;
+    int slot = hash((int)(e >>> 32) - 1) & mask;
+    while (t.get(slot) != 0) slot = (slot + 1) & mask;
+    t.set(slot, e);
+  }
+
+  /**
+   * @return  the configuration of a position within a caller, interned
+   */
+  private int config(int parent, int pos) {
+    Long key = ((long)parent << 32) | (pos & 0xFFFFFFFFL);
+    Integer id = configIds.get(key);
+    if (id != null) return id;
+    if (configs == MAX_CONFIGS) throw new Overflow();
+    if (configs == cPos.length) {
+      cPos = Arrays.copyOf(cPos, 2 * configs);
+      cParent = Arrays.copyOf(cParent, 2 * configs);
+    }
+    cParent[configs] = parent;
+    cPos[configs] = pos;
+    configIds.put(key, configs);
+    return configs++;
+  }
+
+  /**
+   * @return  the configuration after the symbol that a caller waits for
+   */
+  private int advance(int caller) {
+    return caller == 0 ? ACCEPT : config(cParent[caller], cPos[caller] + 1);
+  }
+
+  private void begin() {
+    gen++;
+    work.clear();
+    scan.clear();
+    entries.clear();
+    accept = false;
+  }
+
+  private void push(int c) {
+    if (c == ACCEPT) accept = true;
+    else work.add(c);
+  }
+
+  /**
+   * Enters every alternative of a symbol that a caller waits for
+   */
+  private void predict(int caller, int x) {
+    if (x < g.declared && predicted[x] != gen) {
+      predicted[x] = gen;
+      entries.add(x);
+    }
+    if (g.lexicon.contains(x)) {
+      push(config(caller, ~g.lexicon.root(x)));
+      return;
+    }
+    for (int a = g.altStart[x]; a < g.altStart[x + 1]; a++) push(config(caller, base(a)));
+    if (g.repeats[x]) push(advance(caller)); //no iterations
+  }
+
+  /**
+   * Follows every configuration pushed since begin() through predictions
+   * and completions to those that wait for a token
+   * @return  the state of the configurations reached
+   */
+  private State closure() {
+    while (work.size > 0) {
+      int c = work.a[--work.size];
+      if (seen.length < configs) seen = Arrays.copyOf(seen, cPos.length);
+      if (seen[c] == gen) continue;
+      seen[c] = gen;
+      int p = cPos[c];
+      if (p < 0) { //a node of the lexicon trie
+        scan.add(c);
+        if (g.lexicon.accepting(~p)) push(advance(cParent[c]));
+        continue;
+      }
+      int a = posAlt[p], dot = p - base(a);
+      if (dot == length(a)) { //completion, after which a repeated group may go on
+        push(advance(cParent[c]));
+        if (g.repeats[g.altSymbol[a]]) push(config(cParent[c], base(a)));
+        continue;
+      }
+      int item = g.items[g.itemStart[a] + dot];
+      if (item < 0) scan.add(c);
+      else predict(c, item);
+    }
+    int[] sc = Arrays.copyOf(scan.a, scan.size), en = Arrays.copyOf(entries.a, entries.size);
+    Arrays.sort(sc);
+    Arrays.sort(en);
+    if (sc.length == 0 && !accept && en.length == 0) return dead;
+    int[] key = new int[2 + sc.length + en.length];
+    key[0] = accept ? 1 : 0;
+    key[1] = sc.length;
+    System.arraycopy(sc, 0, key, 2, sc.length);
+    System.arraycopy(en, 0, key, 2 + sc.length, en.length);
+    Key k = new Key(key);
+    State s = states.get(k);
+    if (s == null) {
+      if (states.size() == MAX_STATES) throw new Overflow();
+      s = new State(sc, accept, en);
+      states.put(k, s);
+    }
+    return s;
+  }
+
+}
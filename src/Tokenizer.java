@@ -0,0 +1,115 @@
+/**
+ * Tokenizer splits a text to be matched into tokens, in a single pass over
+ * any CharSequence, such as a String, a StringBuilder or a CharBuffer.
+ *
+ * Tokens are the runs of characters between whitespace, found as (start,
+ * end) character offsets into the original text, so results can point back
+ * into it. Punctuation characters are not part of the token they appear in,
+ * and a run of nothing but punctuation is no token at all. No String is made
+ * for a token unless token() is asked for one: literals are looked up
+ * directly over the characters of the text (see Grammar.literalId()).
+ *
+ * Which characters are whitespace and which are punctuation can be chosen;
+ * the default tokenizer drops .,!@#$%^&*() and splits on ASCII whitespace.
+ *
+ * @author    Alex Li <alextrovert@gmail.com>
+ * @version   1.0
+ */
+
+import java.util.Arrays;
+
+public class Tokenizer {
+
+  /** Drops the punctuation .,!@#$%^&*() and splits on ASCII whitespace */
+  public static final Tokenizer DEFAULT = new Tokenizer(".,!@#$%^&*()", " \t\n\u000B\f\r");
+
+  private final String punctuation, whitespace;
+  //the same sets, looked up directly for ASCII characters
+  private final boolean[] isPunct = new boolean[128], isSpace = new boolean[128];
+
+  /**
+   * Constructor
+   * @param punctuation   the characters to be dropped from tokens
+   * @param whitespace    the characters that separate tokens
+   */
+  public Tokenizer(String punctuation, String whitespace) {
+    this.punctuation = punctuation;
+    this.whitespace = whitespace;
+    for (int i = 0; i < punctuation.length(); i++)
+      if (punctuation.charAt(i) < 128) isPunct[punctuation.charAt(i)] = true;
+    for (int i = 0; i < whitespace.length(); i++)
+      if (whitespace.charAt(i) < 128) isSpace[whitespace.charAt(i)] = true;
+  }
+
+  /**
+   * @param c   a character of a text
+   * @return    whether c is dropped from the token it appears in
+   */
+  public boolean isPunctuation(char c) {
+    return c < 128 ? isPunct[c] : punctuation.indexOf(c) >= 0;
+  }
+
+  /**
+   * @param c   a character of a text
+   * @return    whether c separates tokens
+   */
+  public boolean isWhitespace(char c) {
+    return c < 128 ? isSpace[c] : whitespace.indexOf(c) >= 0;
+  }
+
+  /**
+   * @param text  the text to be split
+   * @return      the start of token i at index 2i, and its end at index 2i + 1
+   */
+  public int[] tokenize(CharSequence text) {
+    IntList bounds = new IntList();
+    tokenize(text, 0, text.length(), bounds);
+    return Arrays.copyOf(bounds.a, bounds.size);
+  }
+
+  /**
+   * Appends the start and end offsets of each token in a range of a text
+   * @param text    the text to be split
+   * @param lo      offset at which to start, which must not be inside a token
+   * @param hi      offset at which to stop, which must not be inside a token
+   * @param bounds  the list to which the offsets are appended
+   */
+  void tokenize(CharSequence text, int lo, int hi, IntList bounds) {
+    int start = -1;    //of the current token, or -1 between tokens
+    boolean word = false; //whether the current token has any non-punctuation
+    for (int i = lo; i < hi; i++) {
+      char c = text.charAt(i);
+      if (isWhitespace(c)) {
+        if (word) {
+          bounds.add(start);
+          bounds.add(i);
+        }
+        start = -1;
+        word = false;
+        continue;
+      }
+      if (start < 0) start = i;
+      if (!isPunctuation(c)) word = true;
+    }
+    if (word) {
+      bounds.add(start);
+      bounds.add(hi);
+    }
+  }
+
+  /**
+   * @param text  the text a token was found in
+   * @param lo    offset of the first character of the token
+   * @param hi    offset after the last character of the token
+   * @return      the token, without its punctuation
+   */
+  public String token(CharSequence text, int lo, int hi) {
+    StringBuilder sb = new StringBuilder(hi - lo);
+    for (int i = lo; i < hi; i++) {
+      char c = text.charAt(i);
+      if (!isPunctuation(c)) sb.append(c);
+    }
+    return sb.toString();
+  }
+
+}